@@ -0,0 +1,381 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the same Pipeline over every image in a folder.
+ *
+ * Each image goes through three stages: decode (read the file),
+ * filter (run the pipeline) and encode (write the file). Reading and
+ * writing mostly wait on the disk while filtering mostly keeps the CPU
+ * busy, so each stage gets its own threads and they hand images along
+ * through small fixed-size queues. That way the disk and the CPU are
+ * both working at the same time, but a slow stage can't make a faster
+ * one pile up an unlimited number of decoded images in memory.
+ *
+ * Decoders and encoders use virtual threads when the JVM has them
+ * (see Threads); filtering uses one thread per core.
+ *
+ * An image that can't be read, filtered or written is counted as failed
+ * and the rest carry on. If every thread of a stage dies anyway, the
+ * stage before it stops waiting for room in its queue and gives up on
+ * the images it has left, so the batch always finishes.
+ *
+ * Usage: java BatchRunner <input folder> <output folder> <filter chain>
+ *  where the filter chain is written like "rotate:25,scale:1.3,saturate:3"
+ */
+class BatchRunner {
+
+    public static final int DEFAULT_QUEUE_SIZE = 8;
+
+    /**
+     * One image making its way through the stages
+     */
+    private static class Job {
+
+        File input;
+        File output;
+        ImageManager image;
+
+        Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+
+    }
+
+    // put in a queue to tell the threads reading it that there's no more work
+    private static final Job DONE = new Job(null, null);
+
+    private int decoders;
+    private int filterers;
+    private int encoders;
+    private int queueSize;
+
+    private BlockingQueue<Job> decoded;
+    private BlockingQueue<Job> filtered;
+
+    // how many images were written, and how many failed at any stage
+    private AtomicInteger encodedCount = new AtomicInteger();
+    private AtomicInteger failedCount = new AtomicInteger();
+
+    // queue depth samples, for the report at the end
+    private long depthSamples;
+    private long decodedDepthTotal;
+    private long filteredDepthTotal;
+    private int decodedDepthMax;
+    private int filteredDepthMax;
+
+    public BatchRunner() {
+        this(
+            4,
+            Runtime.getRuntime().availableProcessors(),
+            4,
+            DEFAULT_QUEUE_SIZE
+        );
+    }
+
+    /**
+     * @param decoders - how many files to read at once
+     * @param filterers - how many images to filter at once
+     * @param encoders - how many files to write at once
+     * @param queueSize - how many images can wait between two stages
+     */
+    public BatchRunner(int decoders, int filterers, int encoders, int queueSize) {
+        if (decoders < 1 || filterers < 1 || encoders < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Thread counts and queue size must be positive");
+        }
+
+        this.decoders = decoders;
+        this.filterers = filterers;
+        this.encoders = encoders;
+        this.queueSize = queueSize;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 3) {
+            System.out.println("Usage: java BatchRunner <input folder> <output folder> <filter chain>");
+            System.out.println("  e.g. java BatchRunner ./images ./out rotate:25,scale:1.3,saturate:3");
+            return;
+        }
+
+        new BatchRunner().run(new File(args[0]), new File(args[1]), Pipeline.parse(args[2]));
+    }
+
+    /**
+     * Filter every image in [inputDir] with [pipeline], saving the results
+     * as JPEGs under the same names in [outputDir], and print a report at
+     * the end. If two images differ only in their extension, only the
+     * first is done.
+     */
+    public void run(File inputDir, File outputDir, Pipeline pipeline) throws InterruptedException {
+        File[] inputs = inputDir.listFiles(BatchRunner::isImage);
+        if (inputs == null) {
+            System.out.println("Error: Couldn't list the folder " + inputDir);
+            return;
+        }
+        Arrays.sort(inputs);
+        outputDir.mkdirs();
+
+        decoded = new ArrayBlockingQueue<Job>(queueSize);
+        filtered = new ArrayBlockingQueue<Job>(queueSize);
+        encodedCount.set(0);
+        failedCount.set(0);
+        depthSamples = 0;
+        decodedDepthTotal = 0;
+        filteredDepthTotal = 0;
+        decodedDepthMax = 0;
+        filteredDepthMax = 0;
+
+        // Every output is a .jpg, so a.png and a.jpg would both be written
+        // to a.jpg, one over the other. The first by name gets it, and
+        // the others fail.
+        ArrayList<File> unique = new ArrayList<File>();
+        HashMap<String, File> claimed = new HashMap<String, File>();
+        for (File input : inputs) {
+            File first = claimed.putIfAbsent(outputName(input), input);
+            if (first == null) {
+                unique.add(input);
+            } else {
+                failedCount.incrementAndGet();
+                System.out.println("Error: " + input.getName() + " would be written to " + outputName(input)
+                        + " like " + first.getName() + ", so it's been skipped");
+            }
+        }
+        File[] work = unique.toArray(new File[0]);
+
+        long start = System.nanoTime();
+
+        // decoders take turns claiming the next file to read
+        AtomicInteger next = new AtomicInteger();
+        ThreadFactory io = Threads.ioThreadFactory();
+
+        // each stage is started before the one that feeds it, so its
+        // threads are all there by the time anything checks on them
+        ArrayList<Thread> encoderThreads = new ArrayList<Thread>();
+        for (int i = 0; i < encoders; i ++) {
+            encoderThreads.add(start(io, () -> {
+                Job job;
+                while ((job = filtered.take()) != DONE) {
+                    try {
+                        if (job.image.write(job.output.getPath())) {
+                            encodedCount.incrementAndGet();
+                        } else {
+                            failedCount.incrementAndGet();
+                        }
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        fail(job, "write", e);
+                    } catch (Error e) {
+                        // the thread can't go on, but the image it had still counts
+                        failedCount.incrementAndGet();
+                        throw e;
+                    }
+                }
+            }));
+        }
+
+        ArrayList<Thread> filterThreads = new ArrayList<Thread>();
+        for (int i = 0; i < filterers; i ++) {
+            filterThreads.add(start(Thread::new, () -> {
+                Job job;
+                while ((job = decoded.take()) != DONE) {
+                    try {
+                        pipeline.run(job.image);
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        fail(job, "filter", e);
+                        continue;
+                    } catch (Error e) {
+                        // the thread can't go on, but the image it had still counts
+                        failedCount.incrementAndGet();
+                        throw e;
+                    }
+
+                    if (!hand(filtered, job, encoderThreads)) {
+                        failedCount.incrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        ArrayList<Thread> decoderThreads = new ArrayList<Thread>();
+        for (int i = 0; i < decoders; i ++) {
+            decoderThreads.add(start(io, () -> {
+                int index;
+                while ((index = next.getAndIncrement()) < work.length) {
+                    Job job = new Job(work[index], new File(outputDir, outputName(work[index])));
+                    try {
+                        job.image = new ImageManager(job.input.getPath());
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        fail(job, "read", e);
+                        continue;
+                    } catch (Error e) {
+                        // the thread can't go on, but the image it had still counts
+                        failedCount.incrementAndGet();
+                        throw e;
+                    }
+
+                    if (job.image.getWidth() == 0) {
+                        failedCount.incrementAndGet();
+                        continue;
+                    }
+
+                    if (!hand(decoded, job, filterThreads)) {
+                        failedCount.incrementAndGet();
+                    }
+                }
+            }));
+        }
+
+        Thread sampler = start(Thread::new, () -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                sampleDepths();
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        // when a stage is done, tell every thread of the next stage to stop
+        joinAll(decoderThreads);
+        for (int i = 0; i < filterers; i ++) {
+            hand(decoded, DONE, filterThreads);
+        }
+        joinAll(filterThreads);
+        for (int i = 0; i < encoders; i ++) {
+            hand(filtered, DONE, encoderThreads);
+        }
+        joinAll(encoderThreads);
+
+        sampler.interrupt();
+        sampler.join();
+
+        // anything still queued had no thread left to take it, and if
+        // every decoder died there may be files none of them got to
+        for (BlockingQueue<Job> queue : Arrays.asList(decoded, filtered)) {
+            for (Job job : queue) {
+                if (job != DONE) {
+                    failedCount.incrementAndGet();
+                }
+            }
+        }
+        failedCount.addAndGet(Math.max(0, work.length - next.get()));
+
+        report(inputs.length, System.nanoTime() - start);
+    }
+
+    private synchronized void sampleDepths() {
+        int decodedDepth = decoded.size();
+        int filteredDepth = filtered.size();
+
+        depthSamples ++;
+        decodedDepthTotal += decodedDepth;
+        filteredDepthTotal += filteredDepth;
+        decodedDepthMax = Math.max(decodedDepthMax, decodedDepth);
+        filteredDepthMax = Math.max(filteredDepthMax, filteredDepth);
+    }
+
+    private synchronized void report(int total, long nanos) {
+        double seconds = nanos / 1e9;
+        int encoded = encodedCount.get();
+
+        System.out.println("Processed " + encoded + " of " + total + " images in "
+                + String.format("%.2f", seconds) + "s ("
+                + String.format("%.1f", encoded / seconds) + " images/sec), "
+                + failedCount.get() + " failed");
+        System.out.println("Threads: " + decoders + " decode, " + filterers + " filter, "
+                + encoders + " encode" + (Threads.hasVirtualThreads() ? " (virtual I/O threads)" : ""));
+
+        long samples = Math.max(depthSamples, 1);
+        System.out.println("Queue decode -> filter: average depth "
+                + String.format("%.2f", (double) decodedDepthTotal / samples)
+                + ", max " + decodedDepthMax + " of " + queueSize);
+        System.out.println("Queue filter -> encode: average depth "
+                + String.format("%.2f", (double) filteredDepthTotal / samples)
+                + ", max " + filteredDepthMax + " of " + queueSize);
+
+        if (Metrics.ENABLED) {
+            System.out.print(Metrics.report());
+        }
+    }
+
+    // Count [job] as failed, saying what went wrong while trying to
+    // [doing] it
+    private void fail(Job job, String doing, Throwable e) {
+        failedCount.incrementAndGet();
+        System.out.println("Error: Couldn't " + doing + " " + job.input + ": " + e);
+    }
+
+    // Put [job] on [queue] for [consumers] to take, waiting while it's
+    // full. If every consumer has died there's no one left to make room,
+    // so give up and return false rather than wait forever.
+    private static boolean hand(BlockingQueue<Job> queue, Job job, ArrayList<Thread> consumers) throws InterruptedException {
+        while (!queue.offer(job, 100, TimeUnit.MILLISECONDS)) {
+            if (!anyAlive(consumers)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean anyAlive(ArrayList<Thread> threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Images keep their name, but are always written as JPEG
+    private static String outputName(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot < 0 ? name : name.substring(0, dot)) + ".jpg";
+    }
+
+    private static boolean isImage(File file) {
+        String name = file.getName().toLowerCase();
+        return file.isFile() && (
+            name.endsWith(".jpg")
+            || name.endsWith(".jpeg")
+            || name.endsWith(".png")
+            || name.endsWith(".bmp")
+            || name.endsWith(".gif")
+            || name.endsWith(".tif")
+            || name.endsWith(".tiff")
+            || name.endsWith(".raw")
+        );
+    }
+
+    // A stage thread that gives up quietly if the batch is interrupted
+    private interface StageBody {
+        void run() throws InterruptedException;
+    }
+
+    private static Thread start(ThreadFactory factory, StageBody body) {
+        Thread thread = factory.newThread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void joinAll(ArrayList<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+}
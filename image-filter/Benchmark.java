@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times every filter and the main ImageManager operations, so changes
+ * can be checked for speedups (or slowdowns) with real numbers.
+ *
+ * For each image size, we make up a test image (a smooth gradient with
+ * some noise on top, so nothing is suspiciously uniform), then run each
+ * operation a few times to let the JIT compiler warm up before timing
+ * a few more runs. For each one we print the time per run, how many
+ * megapixels per second that is, and how many megabytes it allocated.
+ *
+ * Filter methods write a JPEG when they're done, which would swamp the
+ * time spent filtering, so the filters are timed through their *Raster
+ * versions, and writing is timed on its own as "write".
+ *
+ * Most operations change the image they're given, so before every run
+ * (warmup or measured) the test image's pixels are put back the way they
+ * started, outside the timing. Otherwise each operation would be timed
+ * on whatever the ones before it left behind: after contrasty, a black
+ * and white image, and after setColor, a flat grey one. For the same
+ * reason the write operations write to scratch files, never to the
+ * files the read operations read.
+ *
+ * Usage: java Benchmark [megapixels,...] [name ...]
+ *  e.g. java Benchmark 1,12 rotate saturate
+ * With no arguments it runs everything at 1, 12 and 48 megapixels.
+ * The 48 megapixel run needs a heap of 2GB or so (see bench.sh).
+ */
+class Benchmark {
+
+    public static final int WARMUP_RUNS = 3;
+    public static final int MEASURED_RUNS = 5;
+
+    /**
+     * One thing to time, done to [image]
+     */
+    interface Case {
+        void run(ImageManager image);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = { 1, 12, 48 };
+        ArrayList<String> only = new ArrayList<String>();
+
+        for (String arg : args) {
+            if (arg.matches("[0-9,]+")) {
+                sizes = Arrays.stream(arg.split(",")).mapToInt(Integer::parseInt).toArray();
+            } else {
+                only.add(arg);
+            }
+        }
+
+        System.out.println(String.format(
+            "%-22s %6s %10s %10s %12s",
+            "benchmark", "MP", "ms/op", "MP/s", "alloc MB/op"
+        ));
+
+        for (int megapixels : sizes) {
+            // 4:3 like most cameras
+            int height = (int) Math.round(Math.sqrt(megapixels * 1e6 * 3 / 4));
+            int width = height * 4 / 3;
+
+            // [file] and its .raw are what the read operations read, and
+            // the write operations write to [scratch] and its .raw
+            File file = File.createTempFile("benchmark", ".jpg");
+            file.deleteOnExit();
+            File scratch = File.createTempFile("benchmark-out", ".jpg");
+            scratch.deleteOnExit();
+            new File(rawPath(file.getPath())).deleteOnExit();
+            new File(rawPath(scratch.getPath())).deleteOnExit();
+
+            ImageManager source = synthetic(file.getPath(), width, height);
+            source.write();
+            source.write(rawPath(file.getPath()));
+
+            // the image the operations change; [source] never changes
+            ImageManager image = new ImageManager(scratch.getPath(), width, height);
+            int[] pixels = source.getPixels();
+            Runnable restore = () -> System.arraycopy(pixels, 0, image.getPixels(), 0, pixels.length);
+
+            HashMap<String, Runnable> setups = new HashMap<String, Runnable>();
+            for (Map.Entry<String, Case> entry : cases(source, file.getPath(), scratch.getPath(), setups).entrySet()) {
+                if (only.isEmpty() || only.contains(entry.getKey())) {
+                    Runnable setup = setups.get(entry.getKey());
+                    measure(entry.getKey(), entry.getValue(), image, setup == null ? restore : () -> {
+                        restore.run();
+                        setup.run();
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * The operations to time, on images like [source], which has been
+     * saved to [path] and its .raw. Operations that write save to
+     * [scratch] and its .raw. Any that need more put back before each
+     * run than the test image's pixels get an entry in [setups] to do it.
+     */
+    private static LinkedHashMap<String, Case> cases(
+        ImageManager source, String path, String scratch, Map<String, Runnable> setups
+    ) {
+        LinkedHashMap<String, Case> cases = new LinkedHashMap<String, Case>();
+        PlanarImage planar = PlanarImage.of(source);
+        Runnable restorePlanar = () -> planar.load(source);
+
+        cases.put("identical", Filter::identicalRaster);
+        cases.put("brighter", Filter::brighterRaster);
+        cases.put("darker", Filter::darkerRaster);
+        cases.put("redder", Filter::redderRaster);
+        cases.put("greener", Filter::greenerRaster);
+        cases.put("bluer", Filter::bluerRaster);
+        cases.put("logExposureGreyscale", Filter::logExposureGreyscaleRaster);
+        cases.put("logExposure", Filter::logExposureRaster);
+        cases.put("contrasty", Filter::contrastyRaster);
+        cases.put("redderPlanar", image -> Filter.redderRaster(planar));
+        cases.put("logExposurePlanar", image -> Filter.logExposureRaster(planar));
+        cases.put("contrastyPlanar", image -> Filter.contrastyRaster(planar));
+        setups.put("redderPlanar", restorePlanar);
+        setups.put("logExposurePlanar", restorePlanar);
+        setups.put("contrastyPlanar", restorePlanar);
+        cases.put("toPlanar", image -> planar.load(image));
+        cases.put("fromPlanar", image -> planar.store(image));
+        cases.put("saturate", image -> Filter.saturateRaster(image, 1.5));
+        cases.put("greyscale", Filter::greyscaleRaster);
+        cases.put("greyscaleGeom", Filter::greyscaleGeomRaster);
+        cases.put("translate", image -> Filter.translateRaster(image, 17, -9));
+        cases.put("rotate", image -> Filter.rotateRaster(image, 25));
+        cases.put("scale", image -> Filter.scaleRaster(image, 1.3));
+        cases.put("warp", image -> new Warp(Warp.Interpolation.BILINEAR).rotate(25).scale(1.3).apply(image));
+        cases.put("warpMirror", image -> new Warp(Warp.Interpolation.BILINEAR, EdgePolicy.MIRROR).rotate(25).scale(1.3).apply(image));
+        cases.put("histogram", image -> blackhole = (int) Histogram.of(image).getCount());
+        cases.put("autoLevels", Filter::autoLevelsRaster);
+        cases.put("equalize", Filter::equalizeRaster);
+        cases.put("sharpen", image -> Filter.convolveRaster(image, Kernel.SHARPEN));
+        cases.put("gaussianKernel", image -> Filter.convolveRaster(image, Kernel.gaussian(3)));
+        cases.put("blur", image -> Filter.blurRaster(image, 5));
+        cases.put("blurWide", image -> Filter.blurRaster(image, 50));
+        cases.put("gaussianBlur", image -> Filter.gaussianBlurRaster(image, 3));
+
+        cases.put("getColor", image -> {
+            int sum = 0;
+            for (int y = 0; y < image.getHeight(); y ++) {
+                for (int x = 0; x < image.getWidth(); x ++) {
+                    sum += image.getColor(x, y).getRed();
+                }
+            }
+            blackhole = sum;
+        });
+        cases.put("setColor", image -> {
+            java.awt.Color grey = new java.awt.Color(128, 128, 128);
+            for (int y = 0; y < image.getHeight(); y ++) {
+                for (int x = 0; x < image.getWidth(); x ++) {
+                    image.setColor(x, y, grey);
+                }
+            }
+        });
+        cases.put("clone", image -> blackhole = image.clone("unused.jpg").getWidth());
+        cases.put("write", image -> image.write(scratch));
+        cases.put("read", image -> blackhole = new ImageManager(path).getWidth());
+        cases.put("writeRaw", image -> image.write(rawPath(scratch)));
+        cases.put("readRaw", image -> blackhole = new ImageManager(rawPath(path)).getWidth());
+        cases.put("mappedContrasty", image -> {
+            try {
+                RawImage.open(rawPath(scratch), true).apply(Filter.CONTRASTY_LUT);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        // contrasty the untouched pixels each time, not the last run's
+        setups.put("mappedContrasty", () -> {
+            try {
+                Files.copy(Paths.get(rawPath(path)), Paths.get(rawPath(scratch)), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        // after the first run, this is a cache hit plus the copy a filter would make
+        cases.put("cachedRead", image -> blackhole = ImageCache.shared().open(path).getPixels().length);
+
+        return cases;
+    }
+
+    // the .raw file that goes with the test image at [path]
+    private static String rawPath(String path) {
+        return path.replaceAll("\\.jpg$", ".raw");
+    }
+
+    // somewhere to put results so the JIT can't skip the work
+    static volatile int blackhole;
+
+    // Time [benchmark] on [image], running [setup] before every run to
+    // put the image back how it was. Only the runs themselves are timed.
+    private static void measure(String name, Case benchmark, ImageManager image, Runnable setup) {
+        for (int i = 0; i < WARMUP_RUNS; i ++) {
+            setup.run();
+            benchmark.run(image);
+        }
+
+        long nanos = 0;
+        long allocated = 0;
+        for (int i = 0; i < MEASURED_RUNS; i ++) {
+            setup.run();
+
+            long allocatedBefore = Metrics.allocatedBytes();
+            long start = System.nanoTime();
+            benchmark.run(image);
+            nanos += System.nanoTime() - start;
+            allocated += Metrics.allocatedBytes() - allocatedBefore;
+        }
+
+        double seconds = nanos / 1e9 / MEASURED_RUNS;
+        double megapixels = (double) image.getWidth() * image.getHeight() / 1e6;
+
+        System.out.println(String.format(
+            "%-22s %6.1f %10.2f %10.1f %12s",
+            name,
+            megapixels,
+            seconds * 1000,
+            megapixels / seconds,
+            Metrics.allocatedBytes() < 0 ? "n/a" : String.format("%.2f", allocated / 1e6 / MEASURED_RUNS)
+        ));
+    }
+
+    /**
+     * Make up a width x height test image at [path]: a gradient across
+     * the channels, plus a little pseudo-random noise. Always the same
+     * image for the same size, so runs can be compared.
+     */
+    static ImageManager synthetic(String path, int width, int height) {
+        ImageManager image = new ImageManager(path, width, height);
+        int[] pixels = image.getPixels();
+        int seed = 12345;
+
+        for (int y = 0; y < height; y ++) {
+            for (int x = 0; x < width; x ++) {
+                // xorshift, for noise that's cheap and repeatable
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                int noise = (seed & 31) - 16;
+
+                pixels[y * width + x] = Filter.rgb(
+                    Math.max(0, Math.min(255, x * 255 / width + noise)),
+                    Math.max(0, Math.min(255, y * 255 / height + noise)),
+                    Math.max(0, Math.min(255, (x + y) * 255 / (width + height) + noise))
+                );
+            }
+        }
+
+        return image;
+    }
+
+}
@@ -0,0 +1,238 @@
+/**
+ * A blur that sets each pixel to the plain average of the square of
+ * pixels around it, radius pixels out in every direction.
+ *
+ * Done as a Kernel, a radius 20 blur would add up 41 x 41 = 1681 pixels
+ * for every pixel. Instead we keep running sums: moving one pixel to the
+ * right, the square gains one column of pixels and loses another, so we
+ * add one and subtract the other instead of starting over. The same
+ * trick works going down rows. So a blur costs about the same whatever
+ * its radius.
+ *
+ * Each rectangle it's asked to fill does have to get its sums started,
+ * though: 2 * radius + 1 rows before the first output row, and radius
+ * extra pixels either side of every row. On small tiles that would
+ * grow with the radius again, so in parallel a blur asks TileExecutor
+ * for a few tall bands of columns instead (see wantsColumns), and only
+ * starts over once per band.
+ *
+ * Like Kernel, edge pixels are repeated outwards past the edges of the
+ * image unless another EdgePolicy is given. All the sums are whole
+ * numbers, so nothing is rounded until the final average.
+ *
+ * Blurring with a box three times in a row looks very close to a
+ * Gaussian blur (see gaussian()), which is how most photo editors do
+ * big blurs quickly.
+ */
+class BoxBlur implements GatherOp {
+
+    // keeps the biggest sum (255 * (2 * radius + 1)^2) inside an int
+    public static final int MAX_RADIUS = 1000;
+
+    private int radius;
+
+    private EdgePolicy edges;
+
+    public BoxBlur(int radius) {
+        this(radius, EdgePolicy.CLAMP);
+    }
+
+    public BoxBlur(int radius, EdgePolicy edges) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("Blur radius must be between 0 and " + MAX_RADIUS + ", got " + radius);
+        }
+
+        this.radius = radius;
+        this.edges = edges;
+    }
+
+    /**
+     * Three box blurs that, run one after another, come out close to a
+     * Gaussian blur with standard deviation [sigma].
+     *
+     * Each box blur spreads pixels out by a known amount (its variance),
+     * and running them in a row adds those amounts up. So we pick box
+     * sizes whose variances add up to sigma squared, the Gaussian's.
+     * Box sizes have to be odd, so some boxes get the odd size just below
+     * the ideal size and the rest the one just above, in the mix that
+     * comes closest. Below a sigma of about 1 the boxes come out too
+     * small to do anything; use Kernel.gaussian() for blurs that slight.
+     */
+    public static BoxBlur[] gaussian(double sigma) {
+        return gaussian(sigma, EdgePolicy.CLAMP);
+    }
+
+    /**
+     * gaussian(sigma), with every pass handling the edges with [edges]
+     */
+    public static BoxBlur[] gaussian(double sigma, EdgePolicy edges) {
+        if (sigma <= 0) {
+            throw new IllegalArgumentException("sigma must be positive, got " + sigma);
+        }
+
+        int passes = 3;
+        double idealSize = Math.sqrt(12 * sigma * sigma / passes + 1);
+        int smaller = (int) Math.floor(idealSize);
+        if (smaller % 2 == 0) {
+            smaller --;
+        }
+        int bigger = smaller + 2;
+
+        // how many of the passes should use the smaller size
+        int smallCount = (int) Math.round(
+            (12 * sigma * sigma - passes * smaller * smaller - 4 * passes * smaller - 3 * passes)
+                / (-4.0 * smaller - 4)
+        );
+
+        BoxBlur[] blurs = new BoxBlur[passes];
+        for (int i = 0; i < passes; i ++) {
+            int size = i < smallCount ? smaller : bigger;
+            blurs[i] = new BoxBlur(size / 2, edges);
+        }
+        return blurs;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public EdgePolicy getEdges() {
+        return edges;
+    }
+
+    @Override
+    public String toString() {
+        return "BoxBlur(" + radius + ", " + edges + ")";
+    }
+
+    /**
+     * Blur the image, in place
+     */
+    public void apply(ImageManager image) {
+        TileExecutor.sequential().gather(image, this);
+    }
+
+    @Override
+    public boolean wantsColumns() {
+        return true;
+    }
+
+    public void gather(int[] source, int[] target, int width, int height, int x0, int y0, int x1, int y1) {
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+
+        int regionWidth = x1 - x0;
+        int size = radius * 2 + 1;
+        int area = size * size;
+        int[] columns = edges.indexes(x0 - radius, x1 + radius + 1, width);
+
+        // red, green and blue sums of each column of the current square
+        int[] sums = new int[regionWidth * 3];
+        // one row's horizontal sums, before adding them into sums
+        int[] row = new int[regionWidth * 3];
+        // the pixels one row's sums read, padded out past the edges
+        int[] line = new int[columns.length];
+
+        for (int sy = y0 - radius; sy <= y0 + radius; sy ++) {
+            if (loadLine(source, width, edges.index(sy, height), x0 - radius, columns, line)) {
+                rowSums(line, regionWidth, row);
+                for (int i = 0; i < sums.length; i ++) {
+                    sums[i] += row[i];
+                }
+            }
+        }
+
+        for (int y = y0; y < y1; y ++) {
+            int index = y * width + x0;
+            for (int i = 0; i < sums.length; i += 3) {
+                // adding half the area first rounds to the nearest instead of down
+                target[index ++] = Filter.rgb(
+                    (sums[i] + area / 2) / area,
+                    (sums[i + 1] + area / 2) / area,
+                    (sums[i + 2] + area / 2) / area
+                );
+            }
+
+            if (y + 1 < y1) {
+                // slide down: the row below comes in, the top row goes out
+                if (loadLine(source, width, edges.index(y + radius + 1, height), x0 - radius, columns, line)) {
+                    rowSums(line, regionWidth, row);
+                    for (int i = 0; i < sums.length; i ++) {
+                        sums[i] += row[i];
+                    }
+                }
+
+                if (loadLine(source, width, edges.index(y - radius, height), x0 - radius, columns, line)) {
+                    rowSums(line, regionWidth, row);
+                    for (int i = 0; i < sums.length; i ++) {
+                        sums[i] -= row[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy image row [sourceY] into [line], starting from column [from],
+     * which may be off the left of the image. The part that's on the
+     * image is copied straight across; only the pixels past the edges go
+     * through [columns], the edge policy's indexes for the whole line.
+     * Returns false, leaving [line] alone, if the row is all black (a -1
+     * from EdgePolicy.CONSTANT), since black adds nothing to the sums.
+     */
+    private static boolean loadLine(int[] source, int width, int sourceY, int from, int[] columns, int[] line) {
+        if (sourceY < 0) {
+            return false;
+        }
+
+        int rowStart = sourceY * width;
+        int innerFrom = Math.min(Math.max(-from, 0), line.length);
+        int innerTo = Math.max(Math.min(width - from, line.length), innerFrom);
+
+        System.arraycopy(source, rowStart + from + innerFrom, line, innerFrom, innerTo - innerFrom);
+
+        for (int i = 0; i < innerFrom; i ++) {
+            line[i] = columns[i] < 0 ? 0 : source[rowStart + columns[i]];
+        }
+        for (int i = innerTo; i < line.length; i ++) {
+            line[i] = columns[i] < 0 ? 0 : source[rowStart + columns[i]];
+        }
+
+        return true;
+    }
+
+    /**
+     * For each x in the region, add up the 2 * radius + 1 pixels of
+     * [line] centered on it, sliding along the row. line[0] is the pixel
+     * [radius] to the left of the region.
+     */
+    private void rowSums(int[] line, int regionWidth, int[] out) {
+        int size = radius * 2 + 1;
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+
+        for (int i = 0; i < size; i ++) {
+            int c = line[i];
+            red += Filter.red(c);
+            green += Filter.green(c);
+            blue += Filter.blue(c);
+        }
+
+        for (int x = 0; x < regionWidth; x ++) {
+            out[x * 3] = red;
+            out[x * 3 + 1] = green;
+            out[x * 3 + 2] = blue;
+
+            if (x + 1 < regionWidth) {
+                int entering = line[x + size];
+                int leaving = line[x];
+                red += Filter.red(entering) - Filter.red(leaving);
+                green += Filter.green(entering) - Filter.green(leaving);
+                blue += Filter.blue(entering) - Filter.blue(leaving);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A lookup table for filters that change each color channel on its
+ * own, like redder or logExposure.
+ *
+ * A channel only has 256 possible values, so instead of doing the
+ * filter's math for every pixel, we do it once for each of the 256
+ * values up front and keep the answers in a table. Filtering a pixel
+ * is then just three array lookups. Two tables can also be combined
+ * into one with then(), so a chain of channel filters still costs
+ * only three lookups per pixel.
+ */
+class ChannelLut implements PointOp {
+
+    // Each table holds the new channel value, already shifted into its
+    // place in a 0xRRGGBB int, so a pixel is just red | green | blue.
+    private int[] red = new int[256];
+    private int[] green = new int[256];
+    private int[] blue = new int[256];
+
+    // The same tables as plain bytes, one per PlanarImage plane, so
+    // filtering a plane is one lookup per value. Filled in by finish()
+    // once the int tables are done.
+    private byte[][] planes = new byte[3][256];
+
+    private ChannelLut() {
+    }
+
+    /**
+     * Build a table that runs [channel] on all three channels
+     */
+    public static ChannelLut compile(IntUnaryOperator channel) {
+        return compile(channel, channel, channel);
+    }
+
+    /**
+     * Build a table from a separate function for each channel. Each
+     * function takes and returns a channel value from 0 to 255; results
+     * outside of that range are clamped.
+     */
+    public static ChannelLut compile(IntUnaryOperator red, IntUnaryOperator green, IntUnaryOperator blue) {
+        ChannelLut lut = new ChannelLut();
+
+        for (int v = 0; v < 256; v ++) {
+            lut.red[v] = clamp(red.applyAsInt(v)) << 16;
+            lut.green[v] = clamp(green.applyAsInt(v)) << 8;
+            lut.blue[v] = clamp(blue.applyAsInt(v));
+        }
+
+        return lut.finish();
+    }
+
+    /**
+     * A table that leaves every channel as it is
+     */
+    public static ChannelLut identity() {
+        return compile(v -> v);
+    }
+
+    /**
+     * Combine this table with [next] into one table that does the
+     * same thing as running this one and then [next].
+     */
+    public ChannelLut then(ChannelLut next) {
+        ChannelLut lut = new ChannelLut();
+
+        for (int v = 0; v < 256; v ++) {
+            lut.red[v] = next.red[red[v] >> 16];
+            lut.green[v] = next.green[green[v] >> 8];
+            lut.blue[v] = next.blue[blue[v]];
+        }
+
+        return lut.finish();
+    }
+
+    /**
+     * Look up the new value of one channel. [channel] is 0 for red,
+     * 1 for green and 2 for blue.
+     */
+    public int lookup(int channel, int value) {
+        if (channel == 0) {
+            return red[value] >> 16;
+        } else if (channel == 1) {
+            return green[value] >> 8;
+        } else {
+            return blue[value];
+        }
+    }
+
+    public int filter(int rgb) {
+        return red[(rgb >> 16) & 0xFF]
+            | green[(rgb >> 8) & 0xFF]
+            | blue[rgb & 0xFF];
+    }
+
+    /**
+     * Run the table over every pixel of the image
+     */
+    public void apply(ImageManager image) {
+        int[] pixels = image.getPixels();
+
+        for (int i = 0; i < pixels.length; i ++) {
+            int c = pixels[i];
+            pixels[i] = red[(c >> 16) & 0xFF]
+                | green[(c >> 8) & 0xFF]
+                | blue[c & 0xFF];
+        }
+    }
+
+    /**
+     * True if the table leaves [channel] as it is
+     */
+    public boolean isIdentity(int channel) {
+        for (int v = 0; v < 256; v ++) {
+            if (lookup(channel, v) != v) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run the table over a PlanarImage, one plane at a time. Planes the
+     * table doesn't change are skipped without being read at all.
+     */
+    public void apply(PlanarImage image) {
+        for (int channel = PlanarImage.RED; channel <= PlanarImage.BLUE; channel ++) {
+            if (!isIdentity(channel)) {
+                apply(channel, image.getPlane(channel));
+            }
+        }
+    }
+
+    /**
+     * Run [channel]'s table over a plane of that channel's values
+     */
+    public void apply(int channel, byte[] plane) {
+        byte[] table = planes[channel];
+
+        for (int i = 0; i < plane.length; i ++) {
+            plane[i] = table[plane[i] & 0xFF];
+        }
+    }
+
+    private ChannelLut finish() {
+        for (int channel = 0; channel < 3; channel ++) {
+            for (int v = 0; v < 256; v ++) {
+                planes[channel][v] = (byte) lookup(channel, v);
+            }
+        }
+        return this;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(value, 255));
+    }
+
+}
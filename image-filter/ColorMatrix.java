@@ -0,0 +1,206 @@
+import java.util.Arrays;
+
+/**
+ * A color filter written as a 4 x 5 matrix, where each new channel is
+ * a weighted sum of the old red, green, blue and alpha channels plus a
+ * constant:
+ *
+ *   | red'   |   | rr rg rb ra r0 |   | red   |
+ *   | green' | = | gr gg gb ga g0 | x | green |
+ *   | blue'  |   | br bg bb ba b0 |   | blue  |
+ *   | alpha' |   | ar ag ab aa a0 |   | alpha |
+ *                                     |   1   |
+ *
+ * saturate, greyscale and the redder / greener / bluer boosts can all
+ * be written this way. The nice part is that running one matrix after
+ * another is the same as running their product, so a whole chain of
+ * these filters can be squashed with then() into a single matrix and
+ * done in one pass. Values are only rounded and clamped to 0-255 once,
+ * at the very end, so long chains don't pile up rounding errors.
+ *
+ * Our images don't store alpha, so pixels always come in fully opaque
+ * and whatever the alpha row computes is dropped.
+ */
+class ColorMatrix implements PointOp {
+
+    // Nudge applied before truncating, so a value that should come out
+    // as exactly 3 doesn't become 2 because of a 2.9999999 rounding error.
+    private static final double EPSILON = 1e-9;
+
+    // row-major, 5 columns per row
+    private double[] m;
+
+    /**
+     * Make a matrix from its 20 entries, row by row
+     */
+    public ColorMatrix(double... entries) {
+        if (entries.length != 20) {
+            throw new IllegalArgumentException("A color matrix needs 20 entries, got " + entries.length);
+        }
+
+        this.m = entries.clone();
+    }
+
+    /**
+     * Leaves every pixel the same
+     */
+    public static ColorMatrix identity() {
+        return new ColorMatrix(
+            1, 0, 0, 0, 0,
+            0, 1, 0, 0, 0,
+            0, 0, 1, 0, 0,
+            0, 0, 0, 1, 0
+        );
+    }
+
+    /**
+     * Matrix version of Filter.saturate: pull each channel away from
+     * (or toward, if amount < 1) the average of the three channels.
+     */
+    public static ColorMatrix saturate(double amount) {
+        // average + (c - average) * amount, with average = (r + g + b) / 3
+        double same = (1 + 2 * amount) / 3;
+        double other = (1 - amount) / 3;
+
+        return new ColorMatrix(
+            same, other, other, 0, 0,
+            other, same, other, 0, 0,
+            other, other, same, 0, 0,
+            0, 0, 0, 1, 0
+        );
+    }
+
+    /**
+     * Matrix version of Filter.greyscale
+     */
+    public static ColorMatrix greyscale() {
+        return saturate(0);
+    }
+
+    /**
+     * Matrix version of Filter.redder
+     */
+    public static ColorMatrix redder() {
+        return offset(20, 0, 0);
+    }
+
+    /**
+     * Matrix version of Filter.greener
+     */
+    public static ColorMatrix greener() {
+        return offset(0, 20, 0);
+    }
+
+    /**
+     * Matrix version of Filter.bluer
+     */
+    public static ColorMatrix bluer() {
+        return offset(0, 0, 20);
+    }
+
+    /**
+     * Add a constant amount to each channel
+     */
+    public static ColorMatrix offset(double red, double green, double blue) {
+        return new ColorMatrix(
+            1, 0, 0, 0, red,
+            0, 1, 0, 0, green,
+            0, 0, 1, 0, blue,
+            0, 0, 0, 1, 0
+        );
+    }
+
+    /**
+     * Multiply each channel by a constant amount
+     */
+    public static ColorMatrix scale(double red, double green, double blue) {
+        return new ColorMatrix(
+            red, 0, 0, 0, 0,
+            0, green, 0, 0, 0,
+            0, 0, blue, 0, 0,
+            0, 0, 0, 1, 0
+        );
+    }
+
+    /**
+     * A single matrix that does the same as running this one, then [next].
+     *
+     * Treating each matrix as a 5 x 5 matrix with (0, 0, 0, 0, 1) as an
+     * extra bottom row, this is just the product next x this.
+     */
+    public ColorMatrix then(ColorMatrix next) {
+        double[] result = new double[20];
+
+        for (int row = 0; row < 4; row ++) {
+            for (int col = 0; col < 5; col ++) {
+                double sum = 0;
+                for (int k = 0; k < 4; k ++) {
+                    sum += next.m[row * 5 + k] * this.m[k * 5 + col];
+                }
+                if (col == 4) {
+                    // the implicit bottom row carries the offsets through
+                    sum += next.m[row * 5 + 4];
+                }
+                result[row * 5 + col] = sum;
+            }
+        }
+
+        return new ColorMatrix(result);
+    }
+
+    /**
+     * Get the entry at [row] (0-3 for red, green, blue, alpha) and
+     * [col] (0-3 for the same channels, 4 for the constant)
+     */
+    public double get(int row, int col) {
+        return m[row * 5 + col];
+    }
+
+    /**
+     * All 20 entries, so matrices that print the same do the same
+     */
+    @Override
+    public String toString() {
+        return "ColorMatrix" + Arrays.toString(m);
+    }
+
+    public int filter(int rgb) {
+        double red = (rgb >> 16) & 0xFF;
+        double green = (rgb >> 8) & 0xFF;
+        double blue = rgb & 0xFF;
+
+        return (channel(0, red, green, blue) << 16)
+            | (channel(1, red, green, blue) << 8)
+            | channel(2, red, green, blue);
+    }
+
+    /**
+     * Run the matrix over every pixel of the image
+     */
+    public void apply(ImageManager image) {
+        int[] pixels = image.getPixels();
+
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] = filter(pixels[i]);
+        }
+    }
+
+    // Work out one output channel, for a fully opaque input pixel
+    private int channel(int row, double red, double green, double blue) {
+        int at = row * 5;
+        double value = m[at] * red
+            + m[at + 1] * green
+            + m[at + 2] * blue
+            + m[at + 3] * 255
+            + m[at + 4];
+
+        if (value <= 0) {
+            return 0;
+        } else if (value >= 255) {
+            return 255;
+        }
+
+        return (int) (value + EPSILON);
+    }
+
+}
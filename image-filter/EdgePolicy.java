@@ -0,0 +1,70 @@
+/**
+ * What filters that read around each pixel (Warp, Kernel and BoxBlur)
+ * see when they reach past the edge of the image.
+ *
+ * Checking every read against the edges costs a few branches per pixel,
+ * and nearly all reads are nowhere near an edge. So those filters work
+ * out the "interior": the part of the image where everything they read
+ * is inside it. The interior is read directly with no checks, and only
+ * the thin strips along the edges go through index().
+ */
+enum EdgePolicy {
+    // everything outside the image is black
+    CONSTANT,
+    // the edge pixels repeat outwards forever
+    CLAMP,
+    // the image repeats like tiles: past the right edge is the left edge
+    WRAP,
+    // the image is reflected at each edge, edge pixel included
+    MIRROR;
+
+    /**
+     * Which of 0..size-1 to read for position [i] along a row or column
+     * [size] pixels long, or -1 where CONSTANT reads black
+     */
+    int index(int i, int size) {
+        if (i >= 0 && i < size) {
+            return i;
+        }
+
+        if (this == CLAMP) {
+            return i < 0 ? 0 : size - 1;
+        } else if (this == WRAP) {
+            return Math.floorMod(i, size);
+        } else if (this == MIRROR) {
+            // going out and back again takes 2 * size pixels
+            int folded = Math.floorMod(i, 2 * size);
+            return folded < size ? folded : 2 * size - 1 - folded;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * index(i, size) for each i in from..to-1, so a row of lookups past
+     * the edges only has to be worked out once
+     */
+    int[] indexes(int from, int to, int size) {
+        int[] indexes = new int[to - from];
+        for (int i = from; i < to; i ++) {
+            indexes[i - from] = index(i, size);
+        }
+        return indexes;
+    }
+
+    /**
+     * The packed pixel at (x, y) of a width x height image, following
+     * this policy when (x, y) is off the image
+     */
+    int sample(int[] pixels, int width, int height, int x, int y) {
+        int column = index(x, width);
+        int row = index(y, height);
+
+        if (column < 0 || row < 0) {
+            return 0;
+        }
+
+        return pixels[row * width + column];
+    }
+
+}
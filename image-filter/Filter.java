@@ -1,163 +1,218 @@
-import java.awt.Color;
+import java.util.Arrays;
 
 /**
  * A class that contains static methods on ImageManager objects
  * to apply simple filters to objects
+ *
+ * Every filter works straight on the packed 0xRRGGBB int[] from
+ * ImageManager.getPixels(), pulling the red, green and blue channels
+ * out with shifts and masks, so the hot loops never allocate.
+ *
+ * Each public filter method is just its *Raster version, which
+ * changes the pixels without writing the file, followed by write().
+ * Color filters are built on a per-pixel helper (like saturatePixel,
+ * or a ChannelLut for filters that treat each channel on its own), and
+ * geometric filters on a *Region version that fills in just one
+ * rectangle of the image. Pipeline uses those pieces to chain several
+ * filters together and write the result only once, and TileExecutor
+ * uses them to run one filter on many threads. Filters that mix each
+ * pixel with its neighbours, like blurs, live in Kernel and BoxBlur.
+ *
+ * greyscale, contrasty and the channel boosts switch over to SIMD
+ * kernels when the Vector API is available; see Simd.
  */
 class Filter {
 
+    // Same factor java.awt.Color uses for brighter() and darker()
+    private static final double COLOR_FACTOR = 0.7;
+
+    // Smallest channel value brighter() will bump a dim channel up to
+    private static final int BRIGHTER_LEAST = (int) (1.0 / (1.0 - COLOR_FACTOR));
+
+    // Filters that change each channel on its own are done with lookup
+    // tables, so their math runs 256 times instead of once per pixel.
+
+    static final ChannelLut DARKER_LUT = ChannelLut.compile(v -> (int) (v * COLOR_FACTOR));
+
+    static final ChannelLut REDDER_LUT = ChannelLut.compile(
+        v -> Math.min(v + 20, 255),
+        v -> v,
+        v -> v
+    );
+
+    static final ChannelLut GREENER_LUT = ChannelLut.compile(
+        v -> v,
+        v -> Math.min(v + 20, 255),
+        v -> v
+    );
+
+    static final ChannelLut BLUER_LUT = ChannelLut.compile(
+        v -> v,
+        v -> v,
+        v -> Math.min(v + 20, 255)
+    );
+
+    static final ChannelLut LOG_EXPOSURE_LUT = ChannelLut.compile(Filter::logExposeColor);
+
+    static final ChannelLut CONTRASTY_LUT = ChannelLut.compile(v -> v < 127 ? 0 : 255);
+
+    // Fraction of the darkest and brightest pixels autoLevels ignores
+    static final double AUTO_LEVELS_CLIP = 0.005;
+
     /**
      * Identity filter. Keeps every pixel the same color.
      */
     public static void identical(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+        Metrics.Timer timer = Metrics.start("identical");
+        identicalRaster(image);
+        Metrics.stop(timer, image);
+        image.write();
+    }
 
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                image.setColor(x, y, image.getColor(x, y));
-            }
-        }
+    static void identicalRaster(ImageManager image) {
+        int[] pixels = image.getPixels();
 
-        image.write();
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] = pixels[i];
+        }
     }
 
     /**
      * Make each pixel brigter, using java.awt.Color.brighter
      */
     public static void brighter(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+        Metrics.Timer timer = Metrics.start("brighter");
+        brighterRaster(image);
+        Metrics.stop(timer, image);
+        image.write();
+    }
 
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                image.setColor(x, y, image.getColor(x, y).brighter());
-            }
+    static void brighterRaster(ImageManager image) {
+        int[] pixels = image.getPixels();
+
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] = brighterPixel(pixels[i]);
         }
+    }
 
-        image.write();
+    static int brighterPixel(int c) {
+        int red = red(c);
+        int green = green(c);
+        int blue = blue(c);
+
+        if (red == 0 && green == 0 && blue == 0) {
+            return rgb(BRIGHTER_LEAST, BRIGHTER_LEAST, BRIGHTER_LEAST);
+        }
+
+        if (red > 0 && red < BRIGHTER_LEAST) red = BRIGHTER_LEAST;
+        if (green > 0 && green < BRIGHTER_LEAST) green = BRIGHTER_LEAST;
+        if (blue > 0 && blue < BRIGHTER_LEAST) blue = BRIGHTER_LEAST;
+
+        return rgb(
+            Math.min((int) (red / COLOR_FACTOR), 255),
+            Math.min((int) (green / COLOR_FACTOR), 255),
+            Math.min((int) (blue / COLOR_FACTOR), 255)
+        );
     }
 
     /**
      * Make each pixel darker, using java.awt.Color.darker
      */
     public static void darker(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                image.setColor(x, y, image.getColor(x, y).darker());
-            }
-        }
-
+        Metrics.Timer timer = Metrics.start("darker");
+        darkerRaster(image);
+        Metrics.stop(timer, image);
         image.write();
     }
 
+    static void darkerRaster(ImageManager image) {
+        DARKER_LUT.apply(image);
+    }
+
     /**
      * Boost the red level of each pixel
      */
     public static void redder(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        Math.min(c.getRed() + 20, 255),
-                        c.getGreen(),
-                        c.getBlue()
-                    )
-                );
-            }
-        }
-
+        Metrics.Timer timer = Metrics.start("redder");
+        redderRaster(image);
+        Metrics.stop(timer, image);
         image.write();
     }
 
+    static void redderRaster(ImageManager image) {
+        if (Simd.VECTOR != null) {
+            Simd.VECTOR.addClamped(image.getPixels(), 0, image.getPixels().length, 20, 0, 0);
+        } else {
+            REDDER_LUT.apply(image);
+        }
+    }
+
     /**
      * Boost the green level of each pixel
      */
     public static void greener(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        c.getRed(),
-                        Math.min(c.getGreen() + 20, 255),
-                        c.getBlue()
-                    )
-                );
-            }
-        }
-
+        Metrics.Timer timer = Metrics.start("greener");
+        greenerRaster(image);
+        Metrics.stop(timer, image);
         image.write();
     }
 
+    static void greenerRaster(ImageManager image) {
+        if (Simd.VECTOR != null) {
+            Simd.VECTOR.addClamped(image.getPixels(), 0, image.getPixels().length, 0, 20, 0);
+        } else {
+            GREENER_LUT.apply(image);
+        }
+    }
+
     /**
      * Boost the blue level of each pixel
      */
     public static void bluer(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        c.getRed(),
-                        c.getGreen(),
-                        Math.min(c.getBlue() + 20, 255)
-                    )
-                );
-            }
-        }
-
+        Metrics.Timer timer = Metrics.start("bluer");
+        bluerRaster(image);
+        Metrics.stop(timer, image);
         image.write();
     }
 
+    static void bluerRaster(ImageManager image) {
+        if (Simd.VECTOR != null) {
+            Simd.VECTOR.addClamped(image.getPixels(), 0, image.getPixels().length, 0, 0, 20);
+        } else {
+            BLUER_LUT.apply(image);
+        }
+    }
+
     /**
      * Re-expose the image on a log-scale of brightness
      *  i.e. 3-6 is a bigger difference than 100-103. Outputs greyscale
      *  but is faster than logExposure.
      */
     public static void logExposureGreyscale(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                double exposure = (
-                        c.getRed() + c.getGreen() + c.getBlue()
-                        ) / 3.0 / 255.0;
-                int logExposure = (int)(Math.sqrt(exposure) * 255);
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        logExposure,
-                        logExposure,
-                        logExposure
-                    )
-                );
-            }
+        Metrics.Timer timer = Metrics.start("logExposureGreyscale");
+        logExposureGreyscaleRaster(image);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void logExposureGreyscaleRaster(ImageManager image) {
+        int[] pixels = image.getPixels();
+
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] = logExposureGreyscalePixel(pixels[i]);
         }
+    }
 
-        image.write();
+    static int logExposureGreyscalePixel(int c) {
+        double exposure = (
+                red(c) + green(c) + blue(c)
+                ) / 3.0 / 255.0;
+        int logExposure = (int)(Math.sqrt(exposure) * 255);
+        return rgb(
+            logExposure,
+            logExposure,
+            logExposure
+        );
     }
 
     // Helper function for logExposure
@@ -174,52 +229,143 @@ class Filter {
      *  to de-emphasize the greens, which is more exaggerated to the human eye.
      */
     public static void logExposure(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        Filter.logExposeColor(c.getRed()),
-                        Filter.logExposeColor(c.getGreen()),
-                        Filter.logExposeColor(c.getBlue())
-                    )
-                );
-            }
-        }
-
+        Metrics.Timer timer = Metrics.start("logExposure");
+        logExposureRaster(image);
+        Metrics.stop(timer, image);
         image.write();
     }
 
+    static void logExposureRaster(ImageManager image) {
+        LOG_EXPOSURE_LUT.apply(image);
+    }
+
     /**
      * Flatten each RGB value to be either on or off. Full contrast.
      */
     public static void contrasty(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        c.getRed() < 127 ? 0 : 255,
-                        c.getGreen() < 127 ? 0 : 255,
-                        c.getBlue() < 127 ? 0 : 255
-                    )
-                );
-            }
+        Metrics.Timer timer = Metrics.start("contrasty");
+        contrastyRaster(image);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void contrastyRaster(ImageManager image) {
+        if (Simd.VECTOR != null) {
+            Simd.VECTOR.contrasty(image.getPixels(), 0, image.getPixels().length);
+        } else {
+            CONTRASTY_LUT.apply(image);
+        }
+    }
+
+    // The channel filters again, for images split into planes (see
+    // PlanarImage). Each one runs over a plane at a time, and redder,
+    // greener and bluer only touch the one plane they change.
+
+    public static void redder(PlanarImage image) {
+        Metrics.Timer timer = Metrics.start("redder (planar)");
+        redderRaster(image);
+        Metrics.stop(timer, (long) image.getWidth() * image.getHeight());
+        image.write();
+    }
+
+    static void redderRaster(PlanarImage image) {
+        addClamped(image, PlanarImage.RED, REDDER_LUT);
+    }
+
+    public static void greener(PlanarImage image) {
+        Metrics.Timer timer = Metrics.start("greener (planar)");
+        greenerRaster(image);
+        Metrics.stop(timer, (long) image.getWidth() * image.getHeight());
+        image.write();
+    }
+
+    static void greenerRaster(PlanarImage image) {
+        addClamped(image, PlanarImage.GREEN, GREENER_LUT);
+    }
+
+    public static void bluer(PlanarImage image) {
+        Metrics.Timer timer = Metrics.start("bluer (planar)");
+        bluerRaster(image);
+        Metrics.stop(timer, (long) image.getWidth() * image.getHeight());
+        image.write();
+    }
+
+    static void bluerRaster(PlanarImage image) {
+        addClamped(image, PlanarImage.BLUE, BLUER_LUT);
+    }
+
+    // Add 20 to one plane, with SIMD if we can, otherwise with [lut]
+    private static void addClamped(PlanarImage image, int channel, ChannelLut lut) {
+        byte[] plane = image.getPlane(channel);
+
+        if (Simd.VECTOR != null) {
+            Simd.VECTOR.addClamped(plane, 0, plane.length, 20);
+        } else {
+            lut.apply(channel, plane);
         }
+    }
+
+    public static void logExposure(PlanarImage image) {
+        Metrics.Timer timer = Metrics.start("logExposure (planar)");
+        logExposureRaster(image);
+        Metrics.stop(timer, (long) image.getWidth() * image.getHeight());
+        image.write();
+    }
+
+    static void logExposureRaster(PlanarImage image) {
+        LOG_EXPOSURE_LUT.apply(image);
+    }
+
+    public static void contrasty(PlanarImage image) {
+        Metrics.Timer timer = Metrics.start("contrasty (planar)");
+        contrastyRaster(image);
+        Metrics.stop(timer, (long) image.getWidth() * image.getHeight());
+        image.write();
+    }
+
+    static void contrastyRaster(PlanarImage image) {
+        if (Simd.VECTOR == null) {
+            CONTRASTY_LUT.apply(image);
+            return;
+        }
+
+        for (int channel = PlanarImage.RED; channel <= PlanarImage.BLUE; channel ++) {
+            byte[] plane = image.getPlane(channel);
+            Simd.VECTOR.contrasty(plane, 0, plane.length);
+        }
+    }
 
+    /**
+     * Stretch each channel to use the full range from 0 to 255, based
+     * on what's actually in the image (see Histogram.autoLevels).
+     * Good for photos that came out hazy, dull or tinted.
+     */
+    public static void autoLevels(ImageManager image) {
+        Metrics.Timer timer = Metrics.start("autoLevels");
+        autoLevelsRaster(image);
+        Metrics.stop(timer, image);
         image.write();
     }
 
+    static void autoLevelsRaster(ImageManager image) {
+        Histogram.of(image).autoLevels(AUTO_LEVELS_CLIP).apply(image);
+    }
+
+    /**
+     * Spread the brightness levels out evenly (see Histogram.equalize).
+     * Good for bringing out detail in photos that are too dark or light.
+     */
+    public static void equalize(ImageManager image) {
+        Metrics.Timer timer = Metrics.start("equalize");
+        equalizeRaster(image);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void equalizeRaster(ImageManager image) {
+        Histogram.of(image).equalize().apply(image);
+    }
+
     /**
      * Saturate or de-saturate the image by a given amount.
      *
@@ -228,115 +374,146 @@ class Filter {
      * > 1 is saturated / boosted
      */
     public static void saturate(ImageManager image, double amount) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                double red = c.getRed();
-                double green = c.getGreen();
-                double blue = c.getBlue();
-                double average = (red + green + blue) / 3;
-
-                int newRed = (int) Math.min(average + (red - average) * amount, 255);
-                int newGreen = (int) Math.min(average + (green - average) * amount, 255);
-                int newBlue = (int) Math.min(average + (blue - average) * amount, 255);
-
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        Math.max(newRed, 0),
-                        Math.max(newGreen, 0),
-                        Math.max(newBlue, 0)
-                    )
-                );
-            }
+        Metrics.Timer timer = Metrics.start("saturate");
+        saturateRaster(image, amount);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void saturateRaster(ImageManager image, double amount) {
+        int[] pixels = image.getPixels();
+
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] = saturatePixel(pixels[i], amount);
         }
+    }
 
-        image.write();
+    static int saturatePixel(int c, double amount) {
+        double red = red(c);
+        double green = green(c);
+        double blue = blue(c);
+        double average = (red + green + blue) / 3;
+
+        int newRed = (int) Math.min(average + (red - average) * amount, 255);
+        int newGreen = (int) Math.min(average + (green - average) * amount, 255);
+        int newBlue = (int) Math.min(average + (blue - average) * amount, 255);
+
+        return rgb(
+            Math.max(newRed, 0),
+            Math.max(newGreen, 0),
+            Math.max(newBlue, 0)
+        );
     }
 
     /**
      * Average each pixel's RGB value to make the image greyscale on mean
      */
     public static void greyscale(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                int average = (int) (
-                    c.getRed()
-                    + c.getGreen()
-                    + c.getBlue()
-                ) / 3;
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        average,
-                        average,
-                        average
-                    )
-                );
-            }
+        Metrics.Timer timer = Metrics.start("greyscale");
+        greyscaleRaster(image);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void greyscaleRaster(ImageManager image) {
+        int[] pixels = image.getPixels();
+
+        if (Simd.VECTOR != null) {
+            Simd.VECTOR.greyscale(pixels, 0, pixels.length);
+            return;
         }
 
-        image.write();
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] = greyscalePixel(pixels[i]);
+        }
+    }
+
+    static int greyscalePixel(int c) {
+        int average = (
+            red(c)
+            + green(c)
+            + blue(c)
+        ) / 3;
+        return rgb(
+            average,
+            average,
+            average
+        );
     }
 
     /**
      * Average each pixel's RGB value to make the image greyscale on geometric mean
      */
     public static void greyscaleGeom(ImageManager image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = image.getColor(x, y);
-                int average = (int) Math.pow(
-                    c.getRed()
-                    * c.getGreen()
-                    * c.getBlue(),
-                    1.0 / 3.0
-                );
-                image.setColor(
-                    x,
-                    y,
-                    new Color(
-                        average,
-                        average,
-                        average
-                    )
-                );
-            }
+        Metrics.Timer timer = Metrics.start("greyscaleGeom");
+        greyscaleGeomRaster(image);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void greyscaleGeomRaster(ImageManager image) {
+        int[] pixels = image.getPixels();
+
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] = greyscaleGeomPixel(pixels[i]);
         }
+    }
 
-        image.write();
+    static int greyscaleGeomPixel(int c) {
+        int average = (int) Math.pow(
+            red(c)
+            * green(c)
+            * blue(c),
+            1.0 / 3.0
+        );
+        return rgb(
+            average,
+            average,
+            average
+        );
     }
 
     /**
      * Translate the image in the 2D plane by given pixels
      */
     public static void translate(ImageManager image, int horiz, int vert) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+        Metrics.Timer timer = Metrics.start("translate");
+        translateRaster(image, horiz, vert);
+        Metrics.stop(timer, image);
+        image.write();
+    }
 
-        // make a temporary clone source
-        ImageManager source = image.clone("x.jpg");
+    static void translateRaster(ImageManager image, int horiz, int vert) {
+        // read from the image, draw into the back buffer, then flip them
+        translateRegion(image.getPixels(), image.getBackPixels(), image.getWidth(), image.getHeight(),
+                horiz, vert, 0, 0, image.getWidth(), image.getHeight());
+        image.swapBuffers();
+    }
 
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = source.getColor(x - horiz, y - vert);
-                image.setColor(x, y, c);
+    /**
+     * translate, but only filling in target pixels in the rectangle
+     * [x0, x1) by [y0, y1), reading from a separate source array
+     */
+    static void translateRegion(int[] source, int[] target, int width, int height,
+            int horiz, int vert, int x0, int y0, int x1, int y1) {
+        // the columns whose source pixel is on the image
+        int from = Math.min(Math.max(x0, horiz), x1);
+        int to = Math.max(Math.min(x1, width + horiz), from);
+
+        for (int y = y0; y < y1; y ++) {
+            int sourceY = y - vert;
+            int row = y * width;
+
+            if (sourceY < 0 || sourceY >= height) {
+                Arrays.fill(target, row + x0, row + x1, 0);
+                continue;
             }
-        }
 
-        image.write();
+            // off the image is black, and the rest is a straight copy
+            Arrays.fill(target, row + x0, row + from, 0);
+            System.arraycopy(source, sourceY * width + from - horiz, target, row + from, to - from);
+            Arrays.fill(target, row + to, row + x1, 0);
+        }
     }
 
     /**
@@ -347,8 +524,25 @@ class Filter {
      * newY = x sin(t) + y cos(t)
      */
     public static void rotate(ImageManager image, double degrees) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+        Metrics.Timer timer = Metrics.start("rotate");
+        rotateRaster(image, degrees);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void rotateRaster(ImageManager image, double degrees) {
+        // read from the image, draw into the back buffer, then flip them
+        rotateRegion(image.getPixels(), image.getBackPixels(), image.getWidth(), image.getHeight(),
+                degrees, 0, 0, image.getWidth(), image.getHeight());
+        image.swapBuffers();
+    }
+
+    /**
+     * rotate, but only filling in target pixels in the rectangle
+     * [x0, x1) by [y0, y1), reading from a separate source array
+     */
+    static void rotateRegion(int[] source, int[] target, int width, int height,
+            double degrees, int x0, int y0, int x1, int y1) {
         int ww = width / 2;
         int hh = height / 2;
         double radians = -1.0 * degrees * Math.PI / 180;
@@ -356,43 +550,137 @@ class Filter {
         double cosine = Math.cos(radians);
         double sine = Math.sin(radians);
 
-        // make a temporary clone source
-        ImageManager source = image.clone("x.jpg");
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
+        for (int y = y0; y < y1; y ++) {
+            for (int x = x0; x < x1; x ++) {
                 int newX = (int) (((x - ww) * cosine - (y - hh) * sine) + ww);
                 int newY = (int) (((x - ww) * sine + (y - hh) * cosine) + hh);
 
-                Color c = source.getColor(newX, newY);
-                image.setColor(x, y, c);
+                target[y * width + x] = sample(source, width, height, newX, newY);
             }
         }
-
-        image.write();
     }
 
     /**
-     * Scale the image by a given factor around the center. 
+     * Scale the image by a given factor around the center.
      */
     public static void scale(ImageManager image, double factor) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+        Metrics.Timer timer = Metrics.start("scale");
+        scaleRaster(image, factor);
+        Metrics.stop(timer, image);
+        image.write();
+    }
 
+    static void scaleRaster(ImageManager image, double factor) {
+        // read from the image, draw into the back buffer, then flip them
+        scaleRegion(image.getPixels(), image.getBackPixels(), image.getWidth(), image.getHeight(),
+                factor, 0, 0, image.getWidth(), image.getHeight());
+        image.swapBuffers();
+    }
+
+    /**
+     * scale, but only filling in target pixels in the rectangle
+     * [x0, x1) by [y0, y1), reading from a separate source array
+     */
+    static void scaleRegion(int[] source, int[] target, int width, int height,
+            double factor, int x0, int y0, int x1, int y1) {
         int ww = width / 2;
         int hh = height / 2;
 
-        // make a temporary clone source
-        ImageManager source = image.clone("x.jpg");
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                Color c = source.getColor((int) ((x - ww) / factor) + ww, (int) ((y - hh) / factor) + hh);
-                image.setColor(x, y, c);
+        for (int y = y0; y < y1; y ++) {
+            int sourceY = (int) ((y - hh) / factor) + hh;
+            for (int x = x0; x < x1; x ++) {
+                int sourceX = (int) ((x - ww) / factor) + ww;
+                target[y * width + x] = sample(source, width, height, sourceX, sourceY);
             }
         }
+    }
+
+    /**
+     * Run a convolution Kernel over the image, like Kernel.SHARPEN or one
+     * of your own. Separable kernels are done in two faster passes.
+     */
+    public static void convolve(ImageManager image, Kernel kernel) {
+        Metrics.Timer timer = Metrics.start("convolve");
+        convolveRaster(image, kernel);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void convolveRaster(ImageManager image, Kernel kernel) {
+        kernel.apply(image);
+    }
+
+    /**
+     * Make edges and fine detail stand out more
+     */
+    public static void sharpen(ImageManager image) {
+        convolve(image, Kernel.SHARPEN);
+    }
+
+    /**
+     * Turn the image black except for outlines where colors change
+     */
+    public static void edges(ImageManager image) {
+        convolve(image, Kernel.EDGES);
+    }
 
+    /**
+     * Blur by averaging each pixel with the ones up to [radius] pixels
+     * away. Takes about as long for a big radius as a small one.
+     */
+    public static void blur(ImageManager image, int radius) {
+        Metrics.Timer timer = Metrics.start("blur");
+        blurRaster(image, radius);
+        Metrics.stop(timer, image);
         image.write();
     }
 
+    static void blurRaster(ImageManager image, int radius) {
+        new BoxBlur(radius).apply(image);
+    }
+
+    /**
+     * A soft, natural looking blur, about [sigma] pixels wide. It's made
+     * of three box blurs, so big blurs are as quick as small ones.
+     */
+    public static void gaussianBlur(ImageManager image, double sigma) {
+        Metrics.Timer timer = Metrics.start("gaussianBlur");
+        gaussianBlurRaster(image, sigma);
+        Metrics.stop(timer, image);
+        image.write();
+    }
+
+    static void gaussianBlurRaster(ImageManager image, double sigma) {
+        for (BoxBlur pass : BoxBlur.gaussian(sigma)) {
+            pass.apply(image);
+        }
+    }
+
+    // Read a packed pixel out of [pixels], or black if (x, y) is off the image
+    static int sample(int[] pixels, int width, int height, int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+
+        return pixels[y * width + x];
+    }
+
+    // Helpers to pull channels out of, and pack them back into, a 0xRRGGBB int
+
+    static int red(int rgb) {
+        return (rgb >> 16) & 0xFF;
+    }
+
+    static int green(int rgb) {
+        return (rgb >> 8) & 0xFF;
+    }
+
+    static int blue(int rgb) {
+        return rgb & 0xFF;
+    }
+
+    static int rgb(int red, int green, int blue) {
+        return (red << 16) | (green << 8) | blue;
+    }
+
 }
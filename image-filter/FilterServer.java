@@ -0,0 +1,342 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small web server that filters images, so other programs can use
+ * our filters without starting a new Java program for every picture.
+ *
+ * POST an image to /filter?chain=rotate:25,blur:4 and the filtered
+ * image comes back, as a JPEG unless you add &format=png (or bmp).
+ * The chain is written the same way as for BatchRunner (see
+ * Pipeline.parse). GET /stats shows how many requests it has handled.
+ *
+ *   curl --data-binary @images/input.jpg "localhost:8080/filter?chain=saturate:3" > out.jpg
+ *
+ * The server only listens on this machine's loopback address, since
+ * anyone who can reach it can make it do as much work as they like.
+ * Images over maxBodyBytes (64MB by default) are turned away with a
+ * 413 before they're read.
+ *
+ * Each request gets its own thread (a virtual thread, where Java has
+ * them; see Threads). Two things keep it from doing the same work twice:
+ *
+ *  - Results are cached, keyed by a SHA-256 hash of the image bytes,
+ *    chain and format, so asking again for something we've already
+ *    made just sends back the saved bytes.
+ *  - If the same request comes in while it's still being worked on,
+ *    the newcomer waits for that work to finish instead of starting its
+ *    own ("coalescing"). The requests in progress live in a map from
+ *    key to CompletableFuture, and whoever puts the future there first
+ *    does the work.
+ *
+ * Usage: java FilterServer [port]
+ */
+class FilterServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_BODY_BYTES = 64 * 1024 * 1024;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    // requests being worked on right now, by key
+    private ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlight =
+        new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+
+    // finished results, least recently used first
+    private LinkedHashMap<String, byte[]> results = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long resultBytes;
+    private long maxResultBytes;
+    private int maxBodyBytes;
+
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong computed = new AtomicLong();
+    private AtomicLong coalesced = new AtomicLong();
+    private AtomicLong cacheHits = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+
+    public FilterServer(int port, long maxResultBytes) throws IOException {
+        this(port, maxResultBytes, DEFAULT_MAX_BODY_BYTES);
+    }
+
+    /**
+     * @param port - port to listen on, or 0 for any free port
+     * @param maxResultBytes - how many bytes of finished images to cache
+     * @param maxBodyBytes - the biggest image we'll accept, in bytes,
+     *  less than Integer.MAX_VALUE
+     */
+    public FilterServer(int port, long maxResultBytes, int maxBodyBytes) throws IOException {
+        // we read one byte past the limit to tell if a body is over it
+        if (maxBodyBytes < 1 || maxBodyBytes == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The body limit must be from 1 to " + (Integer.MAX_VALUE - 1)
+                    + " bytes, got " + maxBodyBytes);
+        }
+
+        this.maxResultBytes = maxResultBytes;
+        this.maxBodyBytes = maxBodyBytes;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/filter", this::filter);
+        server.createContext("/stats", this::stats);
+
+        executor = Threads.ioExecutor();
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+        FilterServer server = new FilterServer(port, DEFAULT_CACHE_BYTES);
+        server.start();
+        System.out.println("Filtering images at http://localhost:" + server.getPort() + "/filter?chain=...");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * The port we're listening on, which is handy after asking for port 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void filter(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "text/plain", "POST an image to /filter?chain=...\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            String chain = queryParameter(exchange, "chain", "");
+            WriteOptions.Format format = WriteOptions.Format.valueOf(
+                queryParameter(exchange, "format", "jpg").toUpperCase()
+            );
+            if (format == WriteOptions.Format.RAW) {
+                throw new IllegalArgumentException("raw can't be sent over HTTP");
+            }
+
+            // check the chain before doing any work
+            Pipeline.parse(chain);
+
+            byte[] body = readBody(exchange);
+            if (body == null) {
+                failures.incrementAndGet();
+                respond(exchange, 413, "text/plain",
+                    ("Error: Images can be at most " + maxBodyBytes + " bytes\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            String key = key(body, chain, format);
+
+            byte[] result = cached(key);
+            if (result != null) {
+                cacheHits.incrementAndGet();
+            } else {
+                result = compute(key, body, chain, format);
+            }
+
+            respond(exchange, 200, "image/" + format.formatName, result);
+        } catch (IllegalArgumentException e) {
+            failures.incrementAndGet();
+            respond(exchange, 400, "text/plain", ("Error: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            failures.incrementAndGet();
+            respond(exchange, 500, "text/plain", ("Error: " + e + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Filter [body], or wait for whoever is already filtering the same thing
+     */
+    private byte[] compute(String key, byte[] body, String chain, WriteOptions.Format format) throws IOException {
+        CompletableFuture<byte[]> mine = new CompletableFuture<byte[]>();
+        CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, mine);
+
+        if (running != null) {
+            coalesced.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                // fail the same way the request doing the work did
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        try {
+            // the last one may have finished between our cache check and now
+            byte[] result = cached(key);
+            if (result != null) {
+                cacheHits.incrementAndGet();
+                mine.complete(result);
+                return result;
+            }
+
+            result = render(body, chain, format);
+            computed.incrementAndGet();
+            remember(key, result);
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            // anyone waiting on us has to hear about errors too, say an
+            // OutOfMemoryError decoding a huge upload, or they'd wait forever
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            // anyone who found the future already has it, and anyone
+            // who comes later will find the result in the cache
+            inFlight.remove(key);
+        }
+    }
+
+    private static byte[] render(byte[] body, String chain, WriteOptions.Format format) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(body));
+        if (decoded == null) {
+            throw new IllegalArgumentException("the request body isn't an image we can read");
+        }
+
+        ImageManager image = new ImageManager("upload", decoded);
+        Pipeline.parse(chain).run(image);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.write(out, new WriteOptions(format));
+        return out.toByteArray();
+    }
+
+    private synchronized byte[] cached(String key) {
+        return results.get(key);
+    }
+
+    private synchronized void remember(String key, byte[] result) {
+        if (result.length > maxResultBytes || results.containsKey(key)) {
+            return;
+        }
+
+        results.put(key, result);
+        resultBytes += result.length;
+
+        Iterator<byte[]> oldest = results.values().iterator();
+        while (resultBytes > maxResultBytes && oldest.hasNext()) {
+            resultBytes -= oldest.next().length;
+            oldest.remove();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        String text;
+        synchronized (this) {
+            text = "requests " + requests.get() + "\n"
+                + "computed " + computed.get() + "\n"
+                + "coalesced " + coalesced.get() + "\n"
+                + "cache hits " + cacheHits.get() + "\n"
+                + "failures " + failures.get() + "\n"
+                + "cached results " + results.size() + " (" + resultBytes + " bytes)\n";
+        }
+
+        if (Metrics.ENABLED) {
+            text += "\n" + Metrics.report();
+        }
+
+        respond(exchange, 200, "text/plain", text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Hash everything that affects the result into one short string
+    private static String key(byte[] body, String chain, WriteOptions.Format format) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(body);
+            digest.update((byte) 0);
+            digest.update(chain.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(format.formatName.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java is required to have SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name, String fallback) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return fallback;
+        }
+
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return fallback;
+    }
+
+    // The request's body, or null if it's bigger than maxBodyBytes. We
+    // go by Content-Length when there is one, so we don't read anything
+    // we're going to turn away, and stop reading after maxBodyBytes
+    // either way, in case it's missing or lies.
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null) {
+            try {
+                if (Long.parseLong(length.trim()) > maxBodyBytes) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad Content-Length: " + length);
+            }
+        }
+
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(maxBodyBytes + 1);
+            return body.length > maxBodyBytes ? null : body;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+}
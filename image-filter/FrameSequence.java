@@ -0,0 +1,302 @@
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the same Pipeline over a numbered sequence of frames, like the
+ * thousands of stills in a timelapse, overlapping the reading, filtering
+ * and writing of neighbouring frames.
+ *
+ * Doing one frame at a time (read it, filter it, write it) leaves the
+ * CPU mostly idle while a file is decoded or encoded. Here a decoder
+ * thread reads frame N+1 and an encoder thread writes frame N-1 while
+ * frame N is being filtered, so all three happen at once. Frames stay in
+ * order because each stage has a single thread.
+ *
+ * Every frame in a timelapse is the same size, so instead of making a
+ * new ImageManager per frame we keep a small pool of them and pass them
+ * round in a loop: decoder -> filter -> encoder -> back to the decoder.
+ * The decoder reads each new frame into an image the encoder has
+ * finished with, using ImageManager.readInto, so once the pool is full
+ * no frame needs any new pixel arrays. A frame of a different size gets
+ * an image of its own.
+ *
+ * The run prints how much was allocated per frame once the pool was
+ * full. For JPEGs that's a few MB, all of it ImageIO's own working
+ * memory while decoding and encoding; with .raw frames in and out it's
+ * next to nothing.
+ *
+ * A frame that can't be read, filtered or written is counted as failed,
+ * its image goes back in the pool, and the run carries on. If the filter
+ * or encoder thread dies anyway, the decoder stops waiting for images to
+ * come back and the run ends early rather than hanging.
+ *
+ * BatchRunner does something similar for a folder of unrelated images,
+ * with several threads per stage, but makes a new image for each file.
+ *
+ * Usage: java FrameSequence <input pattern> <output pattern> <filter chain> [first frame]
+ *  e.g. java FrameSequence frames/%05d.jpg out/%05d.jpg rotate:2,saturate:1.5
+ * reads frames/00000.jpg, frames/00001.jpg, ... until a number is
+ * missing (starting from [first frame], 0 by default), and writes each
+ * one to the matching number in out/.
+ */
+class FrameSequence {
+
+    // one frame being decoded, one filtered and one encoded, plus one
+    // spare so a stage that finishes early can start on the next frame
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * An image from the pool, and the frame it's holding right now
+     */
+    private static class Frame {
+
+        int number;
+        ImageManager image;
+
+    }
+
+    // put in a queue to tell the next stage there are no more frames
+    private static final Frame DONE = new Frame();
+
+    private int poolSize;
+
+    public FrameSequence() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize - how many frames can be in memory at once, at
+     *  least 3 for every stage to have one to work on
+     */
+    public FrameSequence(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive, got " + poolSize);
+        }
+
+        this.poolSize = poolSize;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: java FrameSequence <input pattern> <output pattern> <filter chain> [first frame]");
+            System.out.println("  e.g. java FrameSequence frames/%05d.jpg out/%05d.jpg rotate:2,saturate:1.5");
+            return;
+        }
+
+        int first = args.length == 4 ? Integer.parseInt(args[3]) : 0;
+        new FrameSequence().run(args[0], args[1], first, Pipeline.parse(args[2]));
+    }
+
+    /**
+     * Filter frames [first], [first] + 1, ... of [inputPattern] with
+     * [pipeline] until a frame's file doesn't exist, writing each to the
+     * same number in [outputPattern]. The patterns are String.format
+     * patterns with one number in them, like "frames/%05d.jpg". Prints
+     * a report at the end.
+     */
+    public void run(String inputPattern, String outputPattern, int first, Pipeline pipeline) throws InterruptedException {
+        int last = first;
+        while (new File(String.format(inputPattern, last)).isFile()) {
+            last ++;
+        }
+        if (last == first) {
+            System.out.println("Error: There's no frame " + String.format(inputPattern, first));
+            return;
+        }
+
+        File outputDir = new File(String.format(outputPattern, first)).getAbsoluteFile().getParentFile();
+        outputDir.mkdirs();
+
+        // the pool: the decoder takes empty images from [free], and the
+        // encoder puts them back when it's done
+        BlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(poolSize);
+        BlockingQueue<Frame> decoded = new ArrayBlockingQueue<Frame>(poolSize + 1);
+        BlockingQueue<Frame> filtered = new ArrayBlockingQueue<Frame>(poolSize + 1);
+        for (int i = 0; i < poolSize; i ++) {
+            free.add(new Frame());
+        }
+
+        int frames = last - first;
+        AtomicInteger written = new AtomicInteger();
+
+        // Each stage adds up what it allocates from frame [steadyFrom] on,
+        // when every image in the pool has been used at least once.
+        // Metrics.allocatedBytes only counts the calling thread, so each
+        // stage measures itself.
+        int steadyFrom = first + poolSize;
+        AtomicLong steadyBytes = new AtomicLong();
+        int lastFrame = last;
+
+        long start = System.nanoTime();
+
+        // The queues between stages have room for every frame in the
+        // pool, so the only wait that can last forever is the decoder's
+        // for a free image. Each stage passes DONE on however it stops,
+        // so the one after it always finishes too.
+        Thread encoder = start("frame-encoder", () -> {
+            long mark = -1;
+
+            Frame frame;
+            while ((frame = filtered.take()) != DONE) {
+                if (mark < 0 && frame.number >= steadyFrom) {
+                    mark = Metrics.allocatedBytes();
+                }
+
+                String path = String.format(outputPattern, frame.number);
+                try {
+                    if (frame.image.write(path)) {
+                        written.incrementAndGet();
+                    }
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    System.out.println("Error: Couldn't write " + path + ": " + e);
+                }
+                free.put(frame);
+            }
+
+            addSince(mark, steadyBytes);
+        });
+
+        Thread filterer = start("frame-filter", () -> {
+            try {
+                long mark = -1;
+
+                Frame frame;
+                while ((frame = decoded.take()) != DONE) {
+                    if (mark < 0 && frame.number >= steadyFrom) {
+                        mark = Metrics.allocatedBytes();
+                    }
+
+                    try {
+                        pipeline.run(frame.image);
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        System.out.println("Error: Couldn't filter frame " + frame.number + ": " + e);
+                        free.put(frame);
+                        continue;
+                    }
+                    filtered.put(frame);
+                }
+
+                addSince(mark, steadyBytes);
+            } finally {
+                filtered.offer(DONE);
+            }
+        });
+
+        Thread decoder = start("frame-decoder", () -> {
+            try {
+                long mark = -1;
+
+                for (int number = first; number < lastFrame; number ++) {
+                    Frame frame = nextFree(free, filterer, encoder);
+                    if (frame == null) {
+                        System.out.println("Error: Frames stopped coming back to be reused, so giving up at frame " + number);
+                        break;
+                    }
+                    if (number == steadyFrom) {
+                        mark = Metrics.allocatedBytes();
+                    }
+
+                    String path = String.format(inputPattern, number);
+                    boolean read;
+                    try {
+                        read = read(frame, path);
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        System.out.println("Error: Couldn't read " + path + ": " + e);
+                        read = false;
+                    }
+
+                    if (!read) {
+                        free.put(frame);
+                        continue;
+                    }
+
+                    frame.number = number;
+                    decoded.put(frame);
+                }
+
+                addSince(mark, steadyBytes);
+            } finally {
+                decoded.offer(DONE);
+            }
+        });
+
+        decoder.join();
+        filterer.join();
+        encoder.join();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int done = written.get();
+        System.out.println("Processed " + done + " of " + frames + " frames in "
+                + String.format("%.2f", seconds) + "s ("
+                + String.format("%.1f", done / seconds) + " frames/sec), "
+                + (frames - done) + " failed");
+
+        if (frames > poolSize && Metrics.allocatedBytes() >= 0) {
+            System.out.println("Allocated " + String.format("%.2f", steadyBytes.get() / 1e6 / (frames - poolSize))
+                    + " MB per frame once all " + poolSize + " images in the pool were in use");
+        }
+
+        if (Metrics.ENABLED) {
+            System.out.print(Metrics.report());
+        }
+    }
+
+    // Read [path] into the frame's image, or into a new image if the
+    // frame doesn't have one yet or it's the wrong size
+    private static boolean read(Frame frame, String path) {
+        if (frame.image != null && frame.image.readInto(path)) {
+            return true;
+        }
+
+        ImageManager image = new ImageManager(path);
+        if (image.getWidth() == 0) {
+            return false;
+        }
+
+        frame.image = image;
+        return true;
+    }
+
+    // Take an image from [free], waiting for one to come back from the
+    // encoder. If the filter or encoder thread has died, one may never
+    // come back, so give up and return null rather than wait forever.
+    private static Frame nextFree(BlockingQueue<Frame> free, Thread filterer, Thread encoder) throws InterruptedException {
+        Frame frame;
+        while ((frame = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            if (!filterer.isAlive() || !encoder.isAlive()) {
+                return null;
+            }
+        }
+        return frame;
+    }
+
+    // Add what this thread has allocated since [mark] to [total], if
+    // it got as far as making a mark
+    private static void addSince(long mark, AtomicLong total) {
+        if (mark >= 0) {
+            total.addAndGet(Metrics.allocatedBytes() - mark);
+        }
+    }
+
+    // A stage thread that gives up quietly if the run is interrupted
+    private interface StageBody {
+        void run() throws InterruptedException;
+    }
+
+    private static Thread start(String name, StageBody body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,24 @@
+/**
+ * A filter that fills in each target pixel by reading from somewhere
+ * in a separate, unchanging copy of the source image, like rotate or
+ * scale. Since every target pixel only depends on the source, any
+ * rectangle of the target can be filled in on its own.
+ */
+interface GatherOp {
+
+    /**
+     * Fill in the target pixels in [x0, x1) by [y0, y1). Both arrays
+     * hold packed 0xRRGGBB pixels for a width x height image.
+     */
+    void gather(int[] source, int[] target, int width, int height, int x0, int y0, int x1, int y1);
+
+    /**
+     * True if, when run in parallel, this op would rather get a few tall
+     * bands of whole columns than lots of small tiles, because it has
+     * work to do to get started on each rectangle it's given
+     */
+    default boolean wantsColumns() {
+        return false;
+    }
+
+}
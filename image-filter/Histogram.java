@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Counts of how many pixels have each value, 0 to 255, in each of the
+ * red, green and blue channels, and in luminance (how bright a pixel
+ * looks to us, with green counting most and blue least).
+ *
+ * Filters like logExposure and contrasty use the same curve for every
+ * picture. A histogram shows what a particular picture needs instead:
+ * a dark photo has all its counts bunched up near 0. autoLevels() and
+ * equalize() turn that into a ChannelLut made for this image, so
+ * fixing a photo takes one pass to count and one pass to apply the table.
+ *
+ * Counting runs in parallel with a TileExecutor. Threads adding to
+ * the same counts would have to take turns, so instead each thread
+ * keeps its own Histogram and they're added together at the end.
+ */
+class Histogram {
+
+    public static final int LEVELS = 256;
+
+    private int[] red = new int[LEVELS];
+    private int[] green = new int[LEVELS];
+    private int[] blue = new int[LEVELS];
+    private int[] luminance = new int[LEVELS];
+
+    private long count;
+
+    /**
+     * Count the pixels of [image]
+     */
+    public static Histogram of(ImageManager image) {
+        return of(image, TileExecutor.sequential());
+    }
+
+    /**
+     * Count the pixels of [image], on [tiles]'s threads
+     */
+    public static Histogram of(ImageManager image, TileExecutor tiles) {
+        int width = image.getWidth();
+        int[] pixels = image.getPixels();
+
+        // every thread that runs a tile gets a Histogram of its own
+        ArrayList<Histogram> perThread = new ArrayList<Histogram>();
+        ThreadLocal<Histogram> mine = ThreadLocal.withInitial(() -> {
+            Histogram histogram = new Histogram();
+            synchronized (perThread) {
+                perThread.add(histogram);
+            }
+            return histogram;
+        });
+
+        tiles.forEachTile(width, image.getHeight(), (x0, y0, x1, y1) -> {
+            Histogram histogram = mine.get();
+            for (int y = y0; y < y1; y ++) {
+                histogram.add(pixels, y * width + x0, y * width + x1);
+            }
+        });
+
+        Histogram total = new Histogram();
+        for (Histogram histogram : perThread) {
+            total.merge(histogram);
+        }
+        return total;
+    }
+
+    /**
+     * Count pixels[from] up to (not including) pixels[to]
+     */
+    public void add(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i ++) {
+            int c = pixels[i];
+            int r = Filter.red(c);
+            int g = Filter.green(c);
+            int b = Filter.blue(c);
+
+            red[r] ++;
+            green[g] ++;
+            blue[b] ++;
+            luminance[luminance(r, g, b)] ++;
+        }
+
+        count += to - from;
+    }
+
+    /**
+     * Add [other]'s counts into this one's
+     */
+    public void merge(Histogram other) {
+        for (int v = 0; v < LEVELS; v ++) {
+            red[v] += other.red[v];
+            green[v] += other.green[v];
+            blue[v] += other.blue[v];
+            luminance[v] += other.luminance[v];
+        }
+
+        count += other.count;
+    }
+
+    /**
+     * The standard (Rec. 601) brightness of a color, 0 to 255, rounded:
+     * 0.299 red + 0.587 green + 0.114 blue. The weights are scaled up by
+     * 65536 so it's all whole numbers, and >> 16 divides back down.
+     */
+    static int luminance(int red, int green, int blue) {
+        return (19595 * red + 38470 * green + 7471 * blue + 32768) >> 16;
+    }
+
+    public int[] getRed() {
+        return red.clone();
+    }
+
+    public int[] getGreen() {
+        return green.clone();
+    }
+
+    public int[] getBlue() {
+        return blue.clone();
+    }
+
+    public int[] getLuminance() {
+        return luminance.clone();
+    }
+
+    /**
+     * How many pixels were counted
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * The average luminance, 0 to 255
+     */
+    public double meanLuminance() {
+        return mean(luminance);
+    }
+
+    private double mean(int[] histogram) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long total = 0;
+        for (int v = 0; v < LEVELS; v ++) {
+            total += (long) v * histogram[v];
+        }
+        return (double) total / count;
+    }
+
+    /**
+     * The smallest value that at least [fraction] of the counts are at
+     * or below. percentile(h, 0.5) is the median.
+     */
+    private int percentile(int[] histogram, double fraction) {
+        long needed = (long) Math.ceil(fraction * count);
+        long seen = 0;
+
+        for (int v = 0; v < LEVELS; v ++) {
+            seen += histogram[v];
+            if (seen >= needed && seen > 0) {
+                return v;
+            }
+        }
+        return LEVELS - 1;
+    }
+
+    /**
+     * A table that stretches each channel so its darkest values become
+     * 0 and its brightest 255, like "auto levels" in photo editors. A
+     * dull, hazy or color-tinted photo comes out with full contrast.
+     *
+     * The darkest and brightest [clip] fraction of each channel (0.005
+     * is typical) are ignored when finding its range, so a few stray
+     * black or white pixels don't stop the rest from being stretched.
+     */
+    public ChannelLut autoLevels(double clip) {
+        if (clip < 0 || clip >= 0.5) {
+            throw new IllegalArgumentException("clip must be at least 0 and under 0.5, got " + clip);
+        }
+
+        return ChannelLut.compile(
+            stretch(percentile(red, clip), percentile(red, 1 - clip)),
+            stretch(percentile(green, clip), percentile(green, 1 - clip)),
+            stretch(percentile(blue, clip), percentile(blue, 1 - clip))
+        );
+    }
+
+    // Map low to 0 and high to 255, in a straight line
+    private static IntUnaryOperator stretch(int low, int high) {
+        if (high <= low) {
+            // only one value: nothing to stretch
+            return v -> v;
+        }
+
+        return v -> (int) Math.round((v - low) * 255.0 / (high - low));
+    }
+
+    /**
+     * A table that spreads brightness evenly, so there are about as many
+     * pixels at every level. Levels that lots of pixels share get pulled
+     * apart, which brings out detail in a photo that's mostly dark or
+     * mostly light.
+     *
+     * Each value moves to where it falls in the luminance histogram (its
+     * cumulative count), and the same curve is used for all three
+     * channels so colors don't shift much.
+     */
+    public ChannelLut equalize() {
+        int[] curve = new int[LEVELS];
+
+        // cumulative counts below the first level used don't count, so
+        // the darkest level in the image maps to 0
+        long first = 0;
+        for (int v = 0; v < LEVELS && first == 0; v ++) {
+            first = luminance[v];
+        }
+
+        long seen = 0;
+        for (int v = 0; v < LEVELS; v ++) {
+            seen += luminance[v];
+
+            if (count == first) {
+                curve[v] = v;
+            } else {
+                curve[v] = (int) Math.round(Math.max(0, seen - first) * 255.0 / (count - first));
+            }
+        }
+
+        return ChannelLut.compile(v -> curve[v]);
+    }
+
+}
@@ -0,0 +1,200 @@
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the pixels of images we've already read, so opening the same
+ * file again skips decoding it.
+ *
+ * Decoding a JPEG takes far longer than any of our filters, and it's
+ * common to run several different filter chains over the same few
+ * pictures, so it pays to keep the decoded pixels around. The cache
+ * holds at most maxBytes worth of pixels. When it's full, the image
+ * that was used least recently is thrown out to make room (LRU, for
+ * "least recently used").
+ *
+ * A cached image is only reused while its file's modification time and
+ * size are unchanged, so editing a file on disk is noticed.
+ *
+ * open() hands out a new ImageManager every time, sharing the cached
+ * pixels until it's about to change them (see ImageManager), so
+ * filtering one never affects the cache or any other.
+ */
+class ImageCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    // the one cache everything in this program shares, made when first used
+    private static ImageCache shared;
+
+    /**
+     * The decoded pixels of one file, and what the file looked like then
+     */
+    private static class Entry {
+
+        long lastModified;
+        long length;
+        int width;
+        int height;
+        int[] pixels;
+
+        long bytes() {
+            return 4L * pixels.length;
+        }
+
+    }
+
+    private long maxBytes;
+    private long bytes;
+
+    // keyed by full path; with accessOrder set to true, iterating a
+    // LinkedHashMap goes from the least to the most recently used entry
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * The cache shared by the whole program
+     */
+    public static synchronized ImageCache shared() {
+        if (shared == null) {
+            shared = new ImageCache(DEFAULT_MAX_BYTES);
+        }
+        return shared;
+    }
+
+    /**
+     * @param maxBytes - how many bytes of pixels to keep, at most
+     */
+    public ImageCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Cache size can't be negative");
+        }
+
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Open the image at [path] like new ImageManager(path) would, but
+     * reuse the decoded pixels if we've read this file before.
+     */
+    public ImageManager open(String path) {
+        File file = new File(path);
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                hits ++;
+                return new ImageManager(path, entry.width, entry.height, entry.pixels);
+            }
+
+            misses ++;
+            if (entry != null) {
+                // the file changed since we read it
+                remove(key);
+            }
+        }
+
+        // decode without holding the lock, so other threads can still
+        // get hits (or decode other files) in the meantime
+        ImageManager decoded = new ImageManager(path);
+        if (decoded.getWidth() == 0) {
+            // couldn't read it; nothing worth remembering
+            return decoded;
+        }
+
+        Entry entry = new Entry();
+        entry.lastModified = lastModified;
+        entry.length = length;
+        entry.width = decoded.getWidth();
+        entry.height = decoded.getHeight();
+        entry.pixels = decoded.getPixels();
+
+        if (entry.bytes() > maxBytes) {
+            // bigger than the whole cache, so don't push everything out for it
+            return decoded;
+        }
+
+        synchronized (this) {
+            // another thread may have read the same file at the same time
+            if (entries.containsKey(key)) {
+                remove(key);
+            }
+
+            entries.put(key, entry);
+            bytes += entry.bytes();
+            evictUntil(maxBytes);
+        }
+
+        // [decoded] owns the array we just cached, so hand out a
+        // shared image instead of letting filters write into it
+        return new ImageManager(path, entry.width, entry.height, entry.pixels);
+    }
+
+    /**
+     * Forget every cached image
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * How many images were thrown out to make room for others
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * How many bytes of pixels are cached right now
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageCache: " + entries.size() + " images, "
+                + String.format("%.1f", bytes / 1e6) + " of "
+                + String.format("%.1f", maxBytes / 1e6) + " MB, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.bytes();
+        }
+    }
+
+    // Throw out least recently used images until at most [limit] bytes are left
+    private void evictUntil(long limit) {
+        Iterator<Entry> oldest = entries.values().iterator();
+
+        while (bytes > limit && oldest.hasNext()) {
+            bytes -= oldest.next().bytes();
+            oldest.remove();
+            evictions ++;
+        }
+    }
+
+}
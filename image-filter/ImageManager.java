@@ -1,29 +1,80 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // to hold all the bytes
 import java.awt.image.BufferedImage;
+// to reach the int[] that backs a BufferedImage
+import java.awt.image.DataBufferInt;
 // to use colors without doing fancy math
 import java.awt.Color;
 // to perform read and write operations
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 /**
  * A class that acts as an abstration for an image file,
  * that allows you to forget the actual image file and
  * simply adjust pixel color values and get size.
+ *
+ * Pixels are kept in a TYPE_INT_RGB BufferedImage, so every
+ * pixel is a single packed int of the form 0xRRGGBB. Filters that
+ * care about speed can work on that int[] directly through
+ * getPixels() instead of making a Color object for every pixel.
+ *
+ * Filters like rotate need to read the old pixels while writing new
+ * ones, so each image also has a second "back" buffer of the same size.
+ * Such a filter reads from getPixels(), writes into getBackPixels(),
+ * then calls swapBuffers() to make the back buffer the real image. The
+ * back buffer is only made the first time it's asked for, and is then
+ * reused for every filter after that.
+ *
+ * Images handed out by ImageCache start out "shared": their pixels are
+ * the cache's copy, which many images may be looking at. Reading them is
+ * free, but the first time anything could change them (getPixels,
+ * setPixel, setRow, swapBuffers or write) this image quietly makes its
+ * own copy first, so filters never touch what's in the cache.
+ *
+ * Writing a big JPEG can take longer than filtering it. writeAsync()
+ * copies the pixels and encodes the copy on a pool of encoder threads,
+ * so the caller can get on with the next image in the meantime.
  */
 class ImageManager {
 
     private int width;
     private int height;
-    
+
     private boolean writable;
 
     private String filePath;
     private File file;
     private BufferedImage image;
 
+    // the packed 0xRRGGBB pixels backing this.image, row by row
+    private int[] pixels;
+
+    // true while this.pixels belongs to ImageCache and must not be
+    // written to; this.image is null until we make our own copy
+    private boolean shared;
+
+    // spare image of the same size for filters to draw into, or null
+    // until the first time it's needed
+    private BufferedImage backImage;
+    private int[] backPixels;
+
     /**
      * Readable / source image
      */
@@ -31,21 +82,150 @@ class ImageManager {
         this.filePath = path;
 
         this.writable = false;
+        this.file = new File(this.filePath);
 
+        Metrics.Timer timer = Metrics.start("read");
+        read();
+        Metrics.stop(timer, this);
+    }
+
+    // decode this.file into this.pixels
+    private void read() {
         try {
-            this.file = new File(this.filePath);
-            this.image = ImageIO.read(this.file);
+            if (RawImage.isRaw(this.filePath)) {
+                // already decoded, so just copy the pixels out of the mapped file
+                RawImage raw = RawImage.open(this.filePath, false);
+                this.width = raw.getWidth();
+                this.height = raw.getHeight();
+                this.image = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+                this.pixels = pixelsOf(this.image);
+                raw.copyTo(this.pixels);
+                return;
+            }
 
-            this.height = image.getHeight();
-            this.width = image.getWidth();
+            BufferedImage decoded = ImageIO.read(this.file);
+            if (decoded == null) {
+                throw new IOException("no image reader understands " + this.filePath);
+            }
+
+            copyFrom(decoded);
         } catch (IOException e) {
             this.height = 0;
             this.width = 0;
+            this.pixels = new int[0];
 
             System.out.println("Error: Couldn't read file correctly!" + e.toString());
         }
     }
 
+    /**
+     * Decode the image at [path] straight into this image's pixels,
+     * instead of making a new image for it, and make [path] the file it
+     * will be written to. Handy for running through many frames of the
+     * same size without allocating new pixels for every one of them.
+     *
+     * ImageIO normally decodes into a new BufferedImage of its own
+     * choosing, which we'd then copy out of. ImageReadParam.setDestination
+     * tells it to decode into ours instead, as long as the file's format
+     * can be decoded to packed RGB ints (JPEGs and plain RGB PNGs can);
+     * anything else is decoded the usual way and copied.
+     *
+     * Returns false if the file can't be read or isn't the same size as
+     * this image. The pixels may be partly overwritten by then.
+     */
+    public boolean readInto(String path) {
+        Metrics.Timer timer = Metrics.start("read");
+
+        // shared pixels are about to be overwritten, so there's no need
+        // to copy them first
+        if (this.shared) {
+            this.image = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+            this.pixels = pixelsOf(this.image);
+            this.shared = false;
+        }
+
+        try {
+            if (RawImage.isRaw(path)) {
+                RawImage raw = RawImage.open(path, false);
+                if (raw.getWidth() != this.width || raw.getHeight() != this.height) {
+                    return false;
+                }
+                raw.copyTo(this.pixels);
+            } else if (!decodeInto(new File(path))) {
+                return false;
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Couldn't read file correctly!" + e.toString());
+            return false;
+        } finally {
+            Metrics.stop(timer, this);
+        }
+
+        this.filePath = path;
+        this.file = new File(path);
+        return true;
+    }
+
+    // Decode [file] into this.image, or return false if it's the wrong size
+    private boolean decodeInto(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                throw new IOException("can't open " + file);
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("no image reader understands " + file);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                if (reader.getWidth(0) != this.width || reader.getHeight(0) != this.height) {
+                    return false;
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (canDecodeToIntRgb(reader)) {
+                    param.setDestination(this.image);
+                    reader.read(0, param);
+                } else {
+                    BufferedImage decoded = reader.read(0, param);
+                    decoded.getRGB(0, 0, this.width, this.height, this.pixels, 0, this.width);
+                    for (int i = 0; i < this.pixels.length; i ++) {
+                        this.pixels[i] &= 0xFFFFFF;
+                    }
+                }
+                return true;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean canDecodeToIntRgb(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            if (types.next().getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Readable AND Writable image, holding a copy of an image that's
+     * already been decoded (say, from a network upload instead of a file)
+     */
+    public ImageManager(String path, BufferedImage decoded) {
+        this.filePath = path;
+
+        this.writable = true;
+
+        this.file = new File(this.filePath);
+        copyFrom(decoded);
+    }
+
     /**
      * Readable AND Writable / target image
      */
@@ -58,23 +238,35 @@ class ImageManager {
 
         this.file = new File(this.filePath);
         this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.pixels = pixelsOf(this.image);
+    }
+
+    /**
+     * A readable image that borrows [pixels] until it has to change them.
+     * Only ImageCache should need this.
+     */
+    ImageManager(String path, int width, int height, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.filePath = path;
+
+        this.writable = false;
+
+        this.file = new File(this.filePath);
+        this.pixels = pixels;
+        this.shared = true;
     }
 
     /**
      * Make a eadable AND Writable / target image, cloned from a source image
      */
     public ImageManager clone(String path) {
+        Metrics.Timer timer = Metrics.start("clone");
         ImageManager clone = new ImageManager(path, this.getWidth(), this.getHeight());
 
-        int width = clone.getWidth();
-        int height = clone.getHeight();
-
-        for (int x = 0; x < width; x ++) {
-            for (int y = 0; y < height; y ++) {
-                clone.setColor(x, y, this.getColor(x, y));
-            }
-        }
+        System.arraycopy(this.pixels, 0, clone.pixels, 0, this.pixels.length);
 
+        Metrics.stop(timer, clone);
         return clone;
     }
 
@@ -82,22 +274,45 @@ class ImageManager {
      * Get the Color value at a given width/height
      */
     public Color getColor(int width, int height) {
+        return new Color(this.getPixel(width, height));
+    }
+
+    /**
+     * Set the pixel value at an image to be a Color value
+     */
+    public void setColor(int width, int height, Color c) {
+        this.setPixel(width, height, c.getRGB());
+    }
+
+    /**
+     * Get the packed 0xRRGGBB value at a given width/height. Like
+     * getColor, anything outside of the image reads as black.
+     */
+    public int getPixel(int width, int height) {
         if (
             width >= this.width
             || height >= this.height
             || width < 0
             || height < 0
         ) {
-            return new Color(0, 0, 0);
+            return 0;
         }
 
-        return new Color(this.image.getRGB(width, height));
+        return this.pixels[height * this.width + width];
     }
 
     /**
-     * Set the pixel value at an image to be a Color value
+     * Like getPixel, but reading past the edges of the image with
+     * [edges] instead of always getting black
      */
-    public void setColor(int width, int height, Color c) {
+    public int getPixel(int width, int height, EdgePolicy edges) {
+        return edges.sample(this.pixels, this.width, this.height, width, height);
+    }
+
+    /**
+     * Set the pixel at a given width/height to a packed 0xRRGGBB value
+     */
+    public void setPixel(int width, int height, int rgb) {
         if (
             width >= this.width
             || height >= this.height
@@ -106,13 +321,90 @@ class ImageManager {
         ) {
             System.out.println("Error: attempted to setColor outside of the image bounds.");
             System.out.println("Erroneous coordinates: " + width + ", " + height);
+            return;
         }
 
         if (!this.writable) {
             System.out.println("Error: attempted to setColor to a writable file.");
         }
 
-        this.image.setRGB(width, height, c.getRGB());
+        unshare();
+        this.pixels[height * this.width + width] = rgb & 0xFFFFFF;
+    }
+
+    /**
+     * Copy row [y] of the image into [row], which must be at least
+     * getWidth() long. Returns [row] for convenience.
+     */
+    public int[] getRow(int y, int[] row) {
+        System.arraycopy(this.pixels, y * this.width, row, 0, this.width);
+        return row;
+    }
+
+    /**
+     * Overwrite row [y] of the image with the first getWidth() values of [row]
+     */
+    public void setRow(int y, int[] row) {
+        unshare();
+        System.arraycopy(row, 0, this.pixels, y * this.width, this.width);
+    }
+
+    /**
+     * The live pixel buffer of this image: packed 0xRRGGBB ints, row by row,
+     * so the pixel at (x, y) lives at index y * getWidth() + x.
+     *
+     * Writes to this array change the image directly, and nothing here
+     * checks bounds for you, so it's meant for filters that loop over
+     * every pixel and want to skip the cost of a Color per pixel.
+     */
+    public int[] getPixels() {
+        unshare();
+        return pixels;
+    }
+
+    /**
+     * The back buffer: a second pixel array of the same size as
+     * getPixels(), for filters that need to read the current pixels
+     * while writing new ones. What's in it before you write is garbage.
+     */
+    public int[] getBackPixels() {
+        if (this.backPixels == null && this.image == null && !this.shared) {
+            // the file couldn't be read, so there are no pixels to back up
+            this.backPixels = new int[0];
+        } else if (this.backPixels == null) {
+            this.backImage = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+            this.backPixels = pixelsOf(this.backImage);
+        }
+
+        return backPixels;
+    }
+
+    /**
+     * Make the back buffer the image, and the old image the back buffer.
+     * Any int[] you got from getPixels() before this now points at the
+     * back buffer, so ask for getPixels() again afterwards.
+     */
+    public void swapBuffers() {
+        getBackPixels();
+
+        if (this.shared) {
+            // the cache's pixels must never become our back buffer, or the
+            // next filter would draw all over them, so just let go of them
+            this.image = this.backImage;
+            this.pixels = this.backPixels;
+            this.backImage = null;
+            this.backPixels = null;
+            this.shared = false;
+            return;
+        }
+
+        BufferedImage image = this.image;
+        this.image = this.backImage;
+        this.backImage = image;
+
+        int[] pixels = this.pixels;
+        this.pixels = this.backPixels;
+        this.backPixels = pixels;
     }
 
     /**
@@ -129,15 +421,187 @@ class ImageManager {
         return height;
     }
 
+    /**
+     * The file this image is read from and written to
+     */
+    public String getPath() {
+        return filePath;
+    }
+
     /**
      * Write all the pending changes to the image to the image's file.
+     *
+     * @return whether it worked; if not, the error is printed
+     */
+    public boolean write() {
+        return write(this.filePath);
+    }
+
+    /**
+     * Write the image to a different file than the one it came from, in
+     * the format its name ends in (.png, .bmp or .raw), or as a JPEG.
+     *
+     * @return whether it worked; if not, the error is printed
+     */
+    public boolean write(String path) {
+        return write(path, WriteOptions.forPath(path));
+    }
+
+    /**
+     * Write the image to [path] with the given format and quality
+     *
+     * @return whether it worked; if not, the error is printed
      */
-    public void write() {
+    public boolean write(String path, WriteOptions options) {
+        // ImageIO needs a BufferedImage, which shared pixels don't have yet
+        unshare();
+
         try {
-            ImageIO.write(this.image, "jpg", this.file);
+            encode(this.image, new File(path), options);
+            return true;
         } catch (IOException e) {
             System.out.println("Error: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Encode the image into [out], say to send it over the network.
+     * Raw images can only be written to files.
+     */
+    public void write(OutputStream out, WriteOptions options) throws IOException {
+        if (options.getFormat() == WriteOptions.Format.RAW) {
+            throw new IOException("Raw images can only be written to a file");
         }
+
+        unshare();
+
+        Metrics.Timer timer = Metrics.start("write");
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(out)) {
+            encode(this.image, output, options);
+        }
+        Metrics.stop(timer, this);
+    }
+
+    /**
+     * Start writing the image to its file on an encoder thread. See
+     * writeAsync(String, WriteOptions).
+     */
+    public CompletableFuture<Void> writeAsync() {
+        return writeAsync(this.filePath, WriteOptions.forPath(this.filePath));
+    }
+
+    /**
+     * Start writing the image to [path] on an encoder thread, and return
+     * right away. What gets written is the image as it is right now:
+     * changing it afterwards doesn't affect the file. The future finishes
+     * when the file is written, or fails with the error if it can't be.
+     * Encoder threads don't keep the program alive, so join() the future
+     * before main() returns.
+     */
+    public CompletableFuture<Void> writeAsync(String path, WriteOptions options) {
+        // a copy the encoder can take its time over
+        BufferedImage snapshot = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        System.arraycopy(this.pixels, 0, pixelsOf(snapshot), 0, this.pixels.length);
+
+        CompletableFuture<Void> written = new CompletableFuture<Void>();
+        encoders().execute(() -> {
+            try {
+                encode(snapshot, new File(path), options);
+                written.complete(null);
+            } catch (IOException | RuntimeException e) {
+                written.completeExceptionally(e);
+            }
+        });
+        return written;
+    }
+
+    private static void encode(BufferedImage image, File file, WriteOptions options) throws IOException {
+        Metrics.Timer timer = Metrics.start("write");
+
+        if (options.getFormat() == WriteOptions.Format.RAW) {
+            RawImage.write(file.getPath(), image.getWidth(), image.getHeight(), pixelsOf(image));
+        } else {
+            // unlike ImageIO.write, an ImageOutputStream writes over an old
+            // file without shortening it, so clear it out first
+            file.delete();
+
+            try (ImageOutputStream output = new FileImageOutputStream(file)) {
+                encode(image, output, options);
+            }
+        }
+
+        Metrics.stop(timer, (long) image.getWidth() * image.getHeight());
+    }
+
+    private static void encode(BufferedImage image, ImageOutputStream output, WriteOptions options) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(options.getFormat().formatName).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+
+        if (options.getQuality() >= 0 && options.getFormat() == WriteOptions.Format.JPG) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(options.getQuality());
+        }
+        if (param.canWriteProgressive()) {
+            param.setProgressiveMode(
+                options.isProgressive() ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED
+            );
+        }
+
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // the threads writeAsync encodes on, made when first needed
+    private static ExecutorService encoders;
+
+    // Encoding is CPU work, so one encoder thread per core
+    private static synchronized ExecutorService encoders() {
+        if (encoders == null) {
+            encoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "image-encoder");
+                // don't keep the program running just for these
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return encoders;
+    }
+
+    // ImageIO hands back whatever layout the file uses (usually 3 bytes
+    // per pixel for JPEGs), so copy it once into our packed int layout.
+    private void copyFrom(BufferedImage decoded) {
+        this.height = decoded.getHeight();
+        this.width = decoded.getWidth();
+
+        this.image = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        this.pixels = pixelsOf(this.image);
+        decoded.getRGB(0, 0, this.width, this.height, this.pixels, 0, this.width);
+        for (int i = 0; i < this.pixels.length; i ++) {
+            this.pixels[i] &= 0xFFFFFF;
+        }
+    }
+
+    // Copy shared pixels into a BufferedImage of our own, if we haven't yet
+    private void unshare() {
+        if (!this.shared) {
+            return;
+        }
+
+        this.image = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        int[] copy = pixelsOf(this.image);
+        System.arraycopy(this.pixels, 0, copy, 0, copy.length);
+        this.pixels = copy;
+        this.shared = false;
+    }
+
+    // Reach into a TYPE_INT_RGB image for the int[] holding its pixels
+    private static int[] pixelsOf(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
     }
 
 }
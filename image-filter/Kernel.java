@@ -0,0 +1,449 @@
+import java.util.Arrays;
+
+/**
+ * A convolution kernel: a small grid of weights, centered on a pixel,
+ * that says how much of each neighbouring pixel goes into the new one.
+ * Blurs, sharpening and edge detection are all convolutions with
+ * different weights.
+ *
+ * Each channel of the new pixel is the sum of weight * channel over the
+ * grid, rounded and clamped to 0-255. Next to the edges of the image,
+ * the grid would hang off the side, so by default we use the nearest
+ * edge pixel in place of the missing ones (EdgePolicy.CLAMP, as if the
+ * edge rows and columns went on forever). That keeps edges from fading
+ * to black. withEdges() picks another EdgePolicy. Only pixels within
+ * the kernel's radius of an edge pay for it; the rest are read directly.
+ *
+ * A width x height kernel costs width * height multiplies per channel
+ * per pixel. But many useful kernels, like Gaussian blurs and Sobel edge
+ * detectors, are "separable": every weight is a column weight times a
+ * row weight. Those can be done as a horizontal pass with the row
+ * weights and a vertical pass with the column weights, for only
+ * width + height multiplies. The constructor checks for that on its
+ * own, and gather() uses the faster way when it can.
+ */
+class Kernel implements GatherOp {
+
+    /**
+     * Makes edges crisper by subtracting some of each neighbour
+     */
+    public static final Kernel SHARPEN = new Kernel(3, 3,
+         0, -1,  0,
+        -1,  5, -1,
+         0, -1,  0
+    );
+
+    /**
+     * Black everywhere except where the color changes suddenly
+     */
+    public static final Kernel EDGES = new Kernel(3, 3,
+        -1, -1, -1,
+        -1,  8, -1,
+        -1, -1, -1
+    );
+
+    /**
+     * Brightens edges where it gets lighter from left to right
+     */
+    public static final Kernel SOBEL_X = new Kernel(3, 3,
+        -1, 0, 1,
+        -2, 0, 2,
+        -1, 0, 1
+    );
+
+    // weights within this much of each other count as the same, since
+    // a separable kernel's weights may not multiply out exactly in doubles
+    private static final double EPSILON = 1e-9;
+
+    private int width;
+    private int height;
+
+    // width * height weights, row by row
+    private double[] weights;
+
+    private EdgePolicy edges = EdgePolicy.CLAMP;
+
+    // if separable, weights[y * width + x] == columnWeights[y] * rowWeights[x];
+    // both are null if not
+    private double[] rowWeights;
+    private double[] columnWeights;
+
+    /**
+     * @param width, height - size of the grid, which must be odd so there's a middle pixel
+     * @param weights - the grid, row by row
+     */
+    public Kernel(int width, int height, double... weights) {
+        if (width < 1 || height < 1 || width % 2 == 0 || height % 2 == 0) {
+            throw new IllegalArgumentException("Kernel sizes must be odd and positive, got " + width + " x " + height);
+        }
+        if (weights.length != width * height) {
+            throw new IllegalArgumentException(
+                "A " + width + " x " + height + " kernel needs " + (width * height) + " weights, got " + weights.length
+            );
+        }
+
+        this.width = width;
+        this.height = height;
+        this.weights = weights.clone();
+
+        separate();
+    }
+
+    /**
+     * A Gaussian blur, which weighs neighbours less the further away they
+     * are. [sigma] is roughly the blur radius in pixels. The kernel
+     * reaches out 3 sigmas, past which the weights are too small to matter.
+     *
+     * For big blurs, BoxBlur.gaussian() is faster and looks nearly the same.
+     */
+    public static Kernel gaussian(double sigma) {
+        if (sigma <= 0) {
+            throw new IllegalArgumentException("sigma must be positive, got " + sigma);
+        }
+
+        int radius = (int) Math.ceil(sigma * 3);
+        int size = radius * 2 + 1;
+
+        double[] line = new double[size];
+        double total = 0;
+        for (int i = 0; i < size; i ++) {
+            double d = i - radius;
+            line[i] = Math.exp(-d * d / (2 * sigma * sigma));
+            total += line[i];
+        }
+        for (int i = 0; i < size; i ++) {
+            line[i] /= total;
+        }
+
+        double[] weights = new double[size * size];
+        for (int y = 0; y < size; y ++) {
+            for (int x = 0; x < size; x ++) {
+                weights[y * size + x] = line[y] * line[x];
+            }
+        }
+
+        return new Kernel(size, size, weights);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double get(int x, int y) {
+        return weights[y * width + x];
+    }
+
+    public EdgePolicy getEdges() {
+        return edges;
+    }
+
+    /**
+     * A copy of this kernel that handles the edges of the image with
+     * [edges]. Kernels like SHARPEN are shared, so this never changes
+     * the kernel it's called on.
+     */
+    public Kernel withEdges(EdgePolicy edges) {
+        Kernel copy = new Kernel(width, height, weights);
+        copy.edges = edges;
+        return copy;
+    }
+
+    /**
+     * The size, weights and edge policy, so kernels that print the same
+     * do the same
+     */
+    @Override
+    public String toString() {
+        return "Kernel(" + width + " x " + height + ", " + edges + ")" + Arrays.toString(weights);
+    }
+
+    /**
+     * True if this kernel is done as two 1-D passes
+     */
+    public boolean isSeparable() {
+        return rowWeights != null;
+    }
+
+    /**
+     * Convolve the image, in place
+     */
+    public void apply(ImageManager image) {
+        TileExecutor.sequential().gather(image, this);
+    }
+
+    public void gather(int[] source, int[] target, int width, int height, int x0, int y0, int x1, int y1) {
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+
+        if (isSeparable()) {
+            separableRegion(source, target, width, height, x0, y0, x1, y1);
+        } else {
+            fullRegion(source, target, width, height, x0, y0, x1, y1);
+        }
+    }
+
+    /**
+     * Work out whether the weights are a column times a row, and if so
+     * fill in rowWeights and columnWeights.
+     */
+    private void separate() {
+        // divide by the biggest weight, to stay away from dividing by ~0
+        int biggest = 0;
+        for (int i = 1; i < weights.length; i ++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[biggest])) {
+                biggest = i;
+            }
+        }
+        double pivot = weights[biggest];
+        if (pivot == 0) {
+            return;
+        }
+
+        // its row is the row weights, and its column (divided by it, so the
+        // two multiply back out to the right size) the column weights
+        int pivotX = biggest % width;
+        int pivotY = biggest / width;
+
+        double[] row = new double[width];
+        double[] column = new double[height];
+        for (int x = 0; x < width; x ++) {
+            row[x] = weights[pivotY * width + x];
+        }
+        for (int y = 0; y < height; y ++) {
+            column[y] = weights[y * width + pivotX] / pivot;
+        }
+
+        for (int y = 0; y < height; y ++) {
+            for (int x = 0; x < width; x ++) {
+                if (Math.abs(column[y] * row[x] - weights[y * width + x]) > EPSILON * Math.abs(pivot)) {
+                    return;
+                }
+            }
+        }
+
+        rowWeights = row;
+        columnWeights = column;
+    }
+
+    // The straightforward way: the whole grid for every pixel
+    private void fullRegion(int[] source, int[] target, int imageWidth, int imageHeight,
+            int x0, int y0, int x1, int y1) {
+        int radiusX = width / 2;
+        int radiusY = height / 2;
+
+        // the columns of the region where the grid is all on the image
+        int innerX0 = Math.min(Math.max(x0, radiusX), x1);
+        int innerX1 = Math.max(Math.min(x1, imageWidth - radiusX), innerX0);
+
+        // where to read for each column and row under the grid, for the edges
+        int[] columns = edges.indexes(x0 - radiusX, x1 + radiusX, imageWidth);
+        int[] rows = new int[height];
+
+        for (int y = y0; y < y1; y ++) {
+            boolean innerRow = y >= radiusY && y < imageHeight - radiusY;
+            int from = innerRow ? innerX0 : x1;
+            int to = innerRow ? innerX1 : x1;
+
+            for (int ky = 0; ky < height; ky ++) {
+                rows[ky] = edges.index(y + ky - radiusY, imageHeight);
+            }
+
+            for (int x = x0; x < from; x ++) {
+                target[y * imageWidth + x] = edgePixel(source, imageWidth, columns, rows, x - x0);
+            }
+            for (int x = from; x < to; x ++) {
+                target[y * imageWidth + x] = innerPixel(source, imageWidth, (y - radiusY) * imageWidth + x - radiusX);
+            }
+            for (int x = to; x < x1; x ++) {
+                target[y * imageWidth + x] = edgePixel(source, imageWidth, columns, rows, x - x0);
+            }
+        }
+    }
+
+    // One pixel whose grid is all on the image, starting at [corner]
+    private int innerPixel(int[] source, int imageWidth, int corner) {
+        double red = 0;
+        double green = 0;
+        double blue = 0;
+
+        for (int ky = 0; ky < height; ky ++) {
+            int rowStart = corner + ky * imageWidth;
+
+            for (int kx = 0; kx < width; kx ++) {
+                double weight = weights[ky * width + kx];
+                int c = source[rowStart + kx];
+
+                red += weight * Filter.red(c);
+                green += weight * Filter.green(c);
+                blue += weight * Filter.blue(c);
+            }
+        }
+
+        return Filter.rgb(toChannel(red), toChannel(green), toChannel(blue));
+    }
+
+    // One pixel near the edge, reading through [columns] (from index [i])
+    // and [rows]; a -1 in either is black
+    private int edgePixel(int[] source, int imageWidth, int[] columns, int[] rows, int i) {
+        double red = 0;
+        double green = 0;
+        double blue = 0;
+
+        for (int ky = 0; ky < height; ky ++) {
+            if (rows[ky] < 0) {
+                continue;
+            }
+            int rowStart = rows[ky] * imageWidth;
+
+            for (int kx = 0; kx < width; kx ++) {
+                int column = columns[i + kx];
+                if (column < 0) {
+                    continue;
+                }
+
+                double weight = weights[ky * width + kx];
+                int c = source[rowStart + column];
+
+                red += weight * Filter.red(c);
+                green += weight * Filter.green(c);
+                blue += weight * Filter.blue(c);
+            }
+        }
+
+        return Filter.rgb(toChannel(red), toChannel(green), toChannel(blue));
+    }
+
+    // Two passes: rows with rowWeights, then columns with columnWeights
+    private void separableRegion(int[] source, int[] target, int imageWidth, int imageHeight,
+            int x0, int y0, int x1, int y1) {
+        int radiusX = width / 2;
+        int radiusY = height / 2;
+        int regionWidth = x1 - x0;
+        int[] columns = edges.indexes(x0 - radiusX, x1 + radiusX, imageWidth);
+
+        // The horizontal pass keeps full precision (and negative numbers,
+        // for kernels like Sobel), so it goes into doubles, red, green and
+        // blue side by side. We only need the last [height] rows of it at
+        // a time, so they live in a ring: row position p (which may be off
+        // the image) is kept in slot p mod height, and rowInSlot says which
+        // position a slot holds now.
+        double[][] passed = new double[height][regionWidth * 3];
+        int[] rowInSlot = new int[height];
+        Arrays.fill(rowInSlot, Integer.MIN_VALUE);
+        int[] slots = new int[height];
+
+        for (int y = y0; y < y1; y ++) {
+            // make sure every row under the kernel has had its horizontal pass
+            for (int ky = 0; ky < height; ky ++) {
+                int position = y + ky - radiusY;
+                int slot = Math.floorMod(position, height);
+                if (rowInSlot[slot] != position) {
+                    horizontalPass(source, imageWidth, edges.index(position, imageHeight),
+                            columns, x0, regionWidth, passed[slot]);
+                    rowInSlot[slot] = position;
+                }
+                slots[ky] = slot;
+            }
+
+            for (int i = 0; i < regionWidth * 3; i += 3) {
+                double red = 0;
+                double green = 0;
+                double blue = 0;
+
+                for (int ky = 0; ky < height; ky ++) {
+                    double weight = columnWeights[ky];
+                    double[] row = passed[slots[ky]];
+
+                    red += weight * row[i];
+                    green += weight * row[i + 1];
+                    blue += weight * row[i + 2];
+                }
+
+                target[y * imageWidth + x0 + i / 3] = Filter.rgb(toChannel(red), toChannel(green), toChannel(blue));
+            }
+        }
+    }
+
+    // The horizontal pass over image row [sourceY], or all zeros (black)
+    // if that's -1
+    private void horizontalPass(int[] source, int imageWidth, int sourceY, int[] columns,
+            int x0, int regionWidth, double[] out) {
+        if (sourceY < 0) {
+            Arrays.fill(out, 0);
+            return;
+        }
+
+        int radiusX = width / 2;
+        int rowStart = sourceY * imageWidth;
+
+        // the part of the region where the row of weights is all on the image
+        int from = Math.min(Math.max(radiusX - x0, 0), regionWidth);
+        int to = Math.max(Math.min(imageWidth - radiusX - x0, regionWidth), from);
+
+        for (int x = 0; x < from; x ++) {
+            edgePass(source, rowStart, columns, x, out);
+        }
+        for (int x = from; x < to; x ++) {
+            innerPass(source, rowStart + x0 + x - radiusX, out, x * 3);
+        }
+        for (int x = to; x < regionWidth; x ++) {
+            edgePass(source, rowStart, columns, x, out);
+        }
+    }
+
+    // The row of weights for region column [x], reading through [columns]
+    private void edgePass(int[] source, int rowStart, int[] columns, int x, double[] out) {
+        double red = 0;
+        double green = 0;
+        double blue = 0;
+
+        for (int kx = 0; kx < width; kx ++) {
+            int column = columns[x + kx];
+            if (column < 0) {
+                continue;
+            }
+
+            double weight = rowWeights[kx];
+            int c = source[rowStart + column];
+
+            red += weight * Filter.red(c);
+            green += weight * Filter.green(c);
+            blue += weight * Filter.blue(c);
+        }
+
+        out[x * 3] = red;
+        out[x * 3 + 1] = green;
+        out[x * 3 + 2] = blue;
+    }
+
+    // The row of weights starting at [start], all on the image
+    private void innerPass(int[] source, int start, double[] out, int i) {
+        double red = 0;
+        double green = 0;
+        double blue = 0;
+
+        for (int kx = 0; kx < width; kx ++) {
+            double weight = rowWeights[kx];
+            int c = source[start + kx];
+
+            red += weight * Filter.red(c);
+            green += weight * Filter.green(c);
+            blue += weight * Filter.blue(c);
+        }
+
+        out[i] = red;
+        out[i + 1] = green;
+        out[i + 2] = blue;
+    }
+
+    // Round a channel sum to the nearest whole value in 0-255
+    private static int toChannel(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+}
@@ -0,0 +1,611 @@
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * An image kept outside of the Java heap, for pictures too big for an
+ * ImageManager, like satellite mosaics of several gigapixels.
+ *
+ * ImageManager keeps its pixels in one int[], and Java arrays are indexed
+ * by int, so no image can have more than 2^31 pixels (a 46000 x 46000
+ * square) no matter how much memory the machine has. A LargeImage counts
+ * pixels with longs and keeps them in chunks of whole rows, each chunk a
+ * ByteBuffer of at most 1GB, either:
+ *
+ *  - allocated outside the heap with allocate(), so the garbage collector
+ *    never has to copy or scan gigabytes of pixels, or
+ *  - mapped from a .raw file with create() or open(), so the operating
+ *    system pages pixels in and out and the image can be bigger than
+ *    memory. The file has the same layout as a RawImage.
+ *
+ * Off-heap memory is normally only given back once the garbage collector
+ * notices the buffer is unreachable, which for a few big buffers might
+ * be never. close() gives it back (or unmaps the file) right away, so a
+ * LargeImage should be used in a try-with-resources block. Using it
+ * after close() throws an IllegalStateException, but close() must not
+ * run while another thread is still reading or writing pixels: touching
+ * memory that has already been freed crashes the JVM instead.
+ *
+ * Filters don't need to know about any of this: apply() copies a strip
+ * of rows at a time into an ordinary ImageManager, runs a Filter *Raster
+ * method or a Pipeline on it, and copies the result back. transform() does
+ * the same for rotations, scales and translations, a tile at a time.
+ *
+ * Usage: java LargeImage <width> <height> [file.raw]
+ *  e.g. java -XX:MaxDirectMemorySize=12g LargeImage 60000 50000
+ * fills a (3 gigapixel) image with a test pattern, filters it, and saves
+ * a corner of it as large.jpg. Images made with allocate() count against
+ * -XX:MaxDirectMemorySize, which defaults to the heap size; file-backed
+ * ones don't.
+ */
+class LargeImage implements AutoCloseable {
+
+    // how big a single chunk can get
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+    // how many pixels apply() puts in each strip
+    static final int STRIP_PIXELS = 1 << 22;
+    // how big a square of output transform() makes at a time
+    static final int TILE_SIZE = 1024;
+
+    private String path;
+    private int width;
+    private int height;
+    private int rowsPerChunk;
+
+    // null once closed
+    private ByteBuffer[] buffers;
+    // views of buffers as little-endian ints
+    private IntBuffer[] chunks;
+    // only set for file-backed images
+    private MappedByteBuffer header;
+
+    private LargeImage(String path, int width, int height, int maxChunkBytes) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image must be at least 1 x 1, got " + width + " x " + height);
+        }
+        if (4L * width > maxChunkBytes) {
+            throw new IllegalArgumentException("Image is too wide: " + width);
+        }
+
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.rowsPerChunk = Math.min(height, maxChunkBytes / (4 * width));
+
+        int count = (height + rowsPerChunk - 1) / rowsPerChunk;
+        this.buffers = new ByteBuffer[count];
+        this.chunks = new IntBuffer[count];
+    }
+
+    /**
+     * A black width x height image in memory outside of the heap
+     */
+    public static LargeImage allocate(int width, int height) {
+        return allocate(width, height, MAX_CHUNK_BYTES);
+    }
+
+    // [maxChunkBytes] is only smaller than MAX_CHUNK_BYTES to try out
+    // images with many chunks without needing gigabytes of memory
+    static LargeImage allocate(int width, int height, int maxChunkBytes) {
+        LargeImage image = new LargeImage(null, width, height, maxChunkBytes);
+
+        for (int i = 0; i < image.chunks.length; i ++) {
+            image.setChunk(i, ByteBuffer.allocateDirect(4 * width * image.chunkRows(i)));
+        }
+
+        return image;
+    }
+
+    /**
+     * Make a black width x height .raw file at [path] (replacing anything
+     * already there) and map it. Every change goes straight to the file.
+     */
+    public static LargeImage create(String path, int width, int height) throws IOException {
+        return create(path, width, height, MAX_CHUNK_BYTES);
+    }
+
+    static LargeImage create(String path, int width, int height, int maxChunkBytes) throws IOException {
+        LargeImage image = new LargeImage(path, width, height, maxChunkBytes);
+
+        new File(path).delete();
+
+        try (
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            FileChannel channel = file.getChannel()
+        ) {
+            // on most file systems this doesn't write anything yet, the
+            // file just reads as zeros (black) until we fill it in
+            file.setLength(RawImage.HEADER_BYTES + 4L * width * height);
+
+            image.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, RawImage.HEADER_BYTES);
+            image.header.order(ByteOrder.BIG_ENDIAN).putInt(0, RawImage.MAGIC);
+            image.header.order(ByteOrder.LITTLE_ENDIAN);
+            image.header.putInt(4, RawImage.VERSION);
+            image.header.putInt(8, width);
+            image.header.putInt(12, height);
+
+            image.map(channel, FileChannel.MapMode.READ_WRITE);
+        }
+
+        return image;
+    }
+
+    /**
+     * Map the .raw file at [path], however big it is. With [writable]
+     * set, changes go straight back into the file.
+     */
+    public static LargeImage open(String path, boolean writable) throws IOException {
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+
+        try (
+            RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r");
+            FileChannel channel = file.getChannel()
+        ) {
+            if (channel.size() < RawImage.HEADER_BYTES) {
+                throw new IOException(path + " is too short to be a raw image");
+            }
+
+            MappedByteBuffer header = channel.map(mode, 0, RawImage.HEADER_BYTES);
+
+            if (header.order(ByteOrder.BIG_ENDIAN).getInt(0) != RawImage.MAGIC) {
+                throw new IOException(path + " isn't a raw image");
+            }
+
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            int version = header.getInt(4);
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+
+            if (version != RawImage.VERSION) {
+                throw new IOException(path + " is raw format version " + version + ", expected " + RawImage.VERSION);
+            }
+            if (width <= 0 || height <= 0 || channel.size() != RawImage.HEADER_BYTES + 4L * width * height) {
+                throw new IOException(path + " has the wrong size for a " + width + " x " + height + " image");
+            }
+
+            LargeImage image = new LargeImage(path, width, height, MAX_CHUNK_BYTES);
+            image.header = header;
+            image.map(channel, mode);
+            return image;
+        }
+    }
+
+    /**
+     * A copy of [image] outside of the heap
+     */
+    public static LargeImage copyOf(ImageManager image) {
+        LargeImage copy = allocate(image.getWidth(), image.getHeight());
+        copy.setRegion(new Rectangle(0, 0, image.getWidth(), image.getHeight()), image.getPixels());
+        return copy;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("Usage: java LargeImage <width> <height> [file.raw]");
+            System.out.println("  e.g. java -XX:MaxDirectMemorySize=12g LargeImage 60000 50000");
+            return;
+        }
+
+        int width = Integer.parseInt(args[0]);
+        int height = Integer.parseInt(args[1]);
+
+        long start = System.nanoTime();
+        try (
+            LargeImage image = args.length == 3 ? create(args[2], width, height) : allocate(width, height);
+            LargeImage rotated = allocate(width, height)
+        ) {
+            // a test pattern, a row at a time
+            int[] row = new int[width];
+            for (int y = 0; y < height; y ++) {
+                for (int x = 0; x < width; x ++) {
+                    row[x] = ((x ^ y) & 0xFF) << 16 | (x * 255 / width) << 8 | (y * 255 / height);
+                }
+                image.setRow(y, row);
+            }
+            report("fill", image, start);
+
+            start = System.nanoTime();
+            image.apply(strip -> Filter.saturateRaster(strip, 2), 0);
+            report("saturate", image, start);
+
+            int halo = 0;
+            for (BoxBlur pass : BoxBlur.gaussian(3)) {
+                halo += pass.getRadius();
+            }
+
+            start = System.nanoTime();
+            image.apply(strip -> Filter.gaussianBlurRaster(strip, 3), halo);
+            report("gaussianBlur", image, start);
+
+            start = System.nanoTime();
+            image.transform(new Warp(Warp.Interpolation.BILINEAR).rotate(10), rotated);
+            report("rotate", rotated, start);
+
+            rotated.toImageManager(new Rectangle(0, 0, Math.min(width, 2000), Math.min(height, 2000)), "large.jpg").write();
+        }
+    }
+
+    private static void report(String step, LargeImage image, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-14s %8.2fs %8.1f Mpx/s", step, seconds, image.getPixelCount() / 1e6 / seconds));
+    }
+
+    /**
+     * Run [filter] on the whole image, a strip of rows at a time, e.g.
+     *
+     *   image.apply(strip -> Filter.saturateRaster(strip, 2), 0);
+     *
+     * [filter] gets an ordinary ImageManager holding the strip, so the
+     * Filter *Raster methods and Pipeline.run work unchanged. Not the
+     * plain Filter methods, like Filter.saturate, or Pipeline.execute:
+     * those also write the strip out to a file. The filter mustn't change
+     * the size of the image, and each output pixel may only depend on
+     * source pixels at most [halo] rows above or below it:
+     *
+     *  - color filters need no halo
+     *  - blurRaster(radius) and BoxBlur need [radius]
+     *  - a Kernel needs half its height
+     *  - gaussianBlurRaster(sigma) needs the radii of the passes in
+     *    BoxBlur.gaussian(sigma) added up, a bit over 3 * sigma
+     *
+     * Each strip is copied with [halo] extra rows above and below, so
+     * the filter sees the same neighbours it would on the whole image.
+     * Rotations, scales and translations move pixels arbitrarily far, so
+     * use transform() for those instead.
+     */
+    public void apply(Consumer<ImageManager> filter, int halo) {
+        if (halo < 0) {
+            throw new IllegalArgumentException("Halo can't be negative, got " + halo);
+        }
+
+        // the next strip's halo overlaps this strip, so each strip's
+        // result is only written back once the next strip has been read
+        int stripRows = Math.min(height, Math.max(halo, Math.max(1, STRIP_PIXELS / width)));
+
+        ImageManager pending = null;
+        Rectangle pendingRows = null;
+        int pendingOffset = 0;
+
+        for (int top = 0; top < height; top += stripRows) {
+            int rows = Math.min(stripRows, height - top);
+            int from = Math.max(0, top - halo);
+            int to = Math.min(height, top + rows + halo);
+
+            ImageManager strip = new ImageManager("strip", width, to - from);
+            getRegion(new Rectangle(0, from, width, to - from), strip.getPixels(), 0);
+
+            if (pending != null) {
+                setRegion(pendingRows, pending.getPixels(), pendingOffset);
+            }
+
+            filter.accept(strip);
+            if (strip.getWidth() != width || strip.getHeight() != to - from) {
+                throw new IllegalArgumentException("apply() can't run filters that change the size of the image");
+            }
+
+            pending = strip;
+            pendingRows = new Rectangle(0, top, width, rows);
+            pendingOffset = (top - from) * width;
+        }
+
+        setRegion(pendingRows, pending.getPixels(), pendingOffset);
+    }
+
+    /**
+     * Fill in [target], which has to be the same size as this image, with
+     * this image run through [warp]. It works on a square of the output
+     * at a time, reading only the window of this image that the square
+     * comes from (see Warp.sourceBounds), so memory use stays small.
+     *
+     * A warp whose EdgePolicy wraps or mirrors could need any pixel of
+     * the image for any square, so on a large image those only work if
+     * the whole image fits in a single array.
+     */
+    public void transform(Warp warp, LargeImage target) {
+        if (target == this) {
+            throw new IllegalArgumentException("transform() needs a separate target image");
+        }
+        if (target.width != width || target.height != height) {
+            throw new IllegalArgumentException("Target is " + target.width + " x " + target.height
+                    + ", expected " + width + " x " + height);
+        }
+
+        for (int y = 0; y < height; y += TILE_SIZE) {
+            for (int x = 0; x < width; x += TILE_SIZE) {
+                Rectangle tile = new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+                Rectangle window = warp.sourceBounds(tile, width, height);
+
+                if ((long) window.width * window.height > Integer.MAX_VALUE - 8) {
+                    throw new IllegalArgumentException("Warp needs a " + window.width + " x " + window.height
+                            + " window of the image, which is too big for an array");
+                }
+
+                int[] source = new int[window.width * window.height];
+                getRegion(window, source, 0);
+
+                int[] pixels = new int[tile.width * tile.height];
+                warp.resample(source, window, pixels, tile, tile, width, height);
+                target.setRegion(tile, pixels, 0);
+            }
+        }
+    }
+
+    /**
+     * Copy [region] of this image into an ImageManager, which will be
+     * saved to [path] when written. The region has to have fewer than
+     * 2^31 pixels.
+     */
+    public ImageManager toImageManager(Rectangle region, String path) {
+        if ((long) region.width * region.height > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Region is too big for an ImageManager: " + region.width + " x " + region.height);
+        }
+
+        ImageManager image = new ImageManager(path, region.width, region.height);
+        getRegion(region, image.getPixels(), 0);
+        return image;
+    }
+
+    /**
+     * Copy all of [image] into this one, with its top left corner at
+     * (x, y), e.g. to stitch tiles into a mosaic
+     */
+    public void draw(ImageManager image, int x, int y) {
+        setRegion(new Rectangle(x, y, image.getWidth(), image.getHeight()), image.getPixels());
+    }
+
+    /**
+     * Copy the packed 0xRRGGBB pixels inside [region] into [target], row
+     * by row
+     */
+    public void getRegion(Rectangle region, int[] target) {
+        getRegion(region, target, 0);
+    }
+
+    /**
+     * Set the pixels inside [region] from the packed 0xRRGGBB pixels in
+     * [source], row by row
+     */
+    public void setRegion(Rectangle region, int[] source) {
+        setRegion(region, source, 0);
+    }
+
+    private void getRegion(Rectangle region, int[] target, int offset) {
+        checkRegion(region);
+
+        for (int y = region.y; y < region.y + region.height; y ++) {
+            int start = offset + (y - region.y) * region.width;
+
+            chunk(y).get(rowStart(y) + region.x, target, start, region.width);
+
+            for (int i = start; i < start + region.width; i ++) {
+                target[i] &= 0xFFFFFF;
+            }
+        }
+    }
+
+    private void setRegion(Rectangle region, int[] source, int offset) {
+        checkRegion(region);
+
+        // the stored pixels carry an opaque alpha, like RawImage's
+        int[] row = new int[region.width];
+        for (int y = region.y; y < region.y + region.height; y ++) {
+            int start = offset + (y - region.y) * region.width;
+
+            for (int i = 0; i < region.width; i ++) {
+                row[i] = 0xFF000000 | source[start + i];
+            }
+
+            chunk(y).put(rowStart(y) + region.x, row, 0, region.width);
+        }
+    }
+
+    /**
+     * Copy row [y] into [row], which must be at least getWidth() long
+     */
+    public int[] getRow(int y, int[] row) {
+        getRegion(new Rectangle(0, y, width, 1), row, 0);
+        return row;
+    }
+
+    public void setRow(int y, int[] row) {
+        setRegion(new Rectangle(0, y, width, 1), row, 0);
+    }
+
+    /**
+     * Get the packed 0xRRGGBB value at (x, y). Anything outside of the
+     * image reads as black.
+     */
+    public int getPixel(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+
+        return chunk(y).get(rowStart(y) + x) & 0xFFFFFF;
+    }
+
+    /**
+     * Get the packed 0xRRGGBB value of pixel number [index], counting
+     * row by row from the top left
+     */
+    public int getPixel(long index) {
+        if (index < 0 || index >= getPixelCount()) {
+            return 0;
+        }
+
+        return getPixel((int) (index % width), (int) (index / width));
+    }
+
+    public void setPixel(int x, int y, int rgb) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            System.out.println("Error: attempted to setPixel outside of the image bounds.");
+            System.out.println("Erroneous coordinates: " + x + ", " + y);
+            return;
+        }
+
+        chunk(y).put(rowStart(y) + x, 0xFF000000 | rgb);
+    }
+
+    public void setPixel(long index, int rgb) {
+        if (index < 0 || index >= getPixelCount()) {
+            System.out.println("Error: attempted to setPixel outside of the image bounds.");
+            System.out.println("Erroneous index: " + index);
+            return;
+        }
+
+        setPixel((int) (index % width), (int) (index / width), rgb);
+    }
+
+    /**
+     * Make sure every change so far has made it to the file on disk, if
+     * there is one
+     */
+    public void flush() {
+        checkOpen();
+
+        if (header != null && !header.isReadOnly()) {
+            for (ByteBuffer buffer : buffers) {
+                ((MappedByteBuffer) buffer).force();
+            }
+            header.force();
+        }
+    }
+
+    /**
+     * Give the memory back (or unmap the file, after flushing it) right
+     * away, instead of whenever the garbage collector gets to it. Closing
+     * twice does nothing.
+     *
+     * Nothing else may be using the image at the same time. A call that
+     * starts after close() throws an IllegalStateException, but one that
+     * is already running on another thread may go on to read or write
+     * the freed memory, which crashes the JVM. Make sure other threads
+     * are done with the image (say, by joining them) before closing it.
+     */
+    @Override
+    public void close() {
+        if (buffers == null) {
+            return;
+        }
+
+        flush();
+
+        ByteBuffer[] freeing = buffers;
+        buffers = null;
+        chunks = null;
+
+        for (ByteBuffer buffer : freeing) {
+            free(buffer);
+        }
+        if (header != null) {
+            free(header);
+            header = null;
+        }
+    }
+
+    public boolean isClosed() {
+        return buffers == null;
+    }
+
+    /**
+     * The file the image is mapped from, or null if it's only in memory
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getPixelCount() {
+        return (long) width * height;
+    }
+
+    // Map every chunk of the open file
+    private void map(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+        for (int i = 0; i < chunks.length; i ++) {
+            long offset = RawImage.HEADER_BYTES + 4L * width * i * rowsPerChunk;
+            setChunk(i, channel.map(mode, offset, 4L * width * chunkRows(i)));
+        }
+    }
+
+    private void setChunk(int i, ByteBuffer buffer) {
+        buffers[i] = buffer;
+        chunks[i] = buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    // How many rows chunk [i] holds (the last one may be short)
+    private int chunkRows(int i) {
+        return Math.min(rowsPerChunk, height - i * rowsPerChunk);
+    }
+
+    // The chunk holding row [y]
+    private IntBuffer chunk(int y) {
+        checkOpen();
+        return chunks[y / rowsPerChunk];
+    }
+
+    // Where row [y] starts within its chunk
+    private int rowStart(int y) {
+        return (y % rowsPerChunk) * width;
+    }
+
+    private void checkOpen() {
+        if (buffers == null) {
+            throw new IllegalStateException("LargeImage has already been closed");
+        }
+    }
+
+    private void checkRegion(Rectangle region) {
+        if (region.x < 0 || region.y < 0 || region.width < 0 || region.height < 0
+                || region.x + region.width > width || region.y + region.height > height) {
+            throw new IndexOutOfBoundsException("Region " + region + " isn't inside the " + width + " x " + height + " image");
+        }
+    }
+
+    private static Method invokeCleaner;
+    private static Object unsafe;
+    // whether we've said that we can't free buffers ourselves
+    private static boolean warned;
+
+    /**
+     * Free a direct or mapped buffer now. The JDK has no public way to do
+     * this, but sun.misc.Unsafe.invokeCleaner runs the same cleanup the
+     * garbage collector would have. If it isn't there, we leave it to
+     * the garbage collector after all, and say so the first time.
+     */
+    private static synchronized void free(ByteBuffer buffer) {
+        try {
+            if (invokeCleaner == null) {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+
+            invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not freed yet, but it will be once it's garbage
+            if (!warned) {
+                warned = true;
+                System.out.println("Warning: Can't free LargeImage memory on close() (" + e
+                        + "), so it stays in use until the garbage collector frees it");
+            }
+        }
+    }
+
+}
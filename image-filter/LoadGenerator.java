@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends lots of requests to a FilterServer and reports how fast it kept
+ * up: requests per second, and how long requests took, including the
+ * 99th percentile (p99), the time that all but the slowest 1% of
+ * requests finished within. Averages hide the slow requests users
+ * notice, so p99 is the number to watch.
+ *
+ * [concurrency] clients each send their next request as soon as the
+ * last one comes back, cycling through the given filter chains. With
+ * fewer chains than clients, several clients ask for the same thing at
+ * once, which is what coalescing and the result cache are for.
+ *
+ * Usage: java LoadGenerator <image> [requests] [concurrency] [chain;chain;...] [server url]
+ *  e.g. java LoadGenerator images/input.jpg 200 8 "saturate:3;rotate:25,blur:4"
+ * Without a server url, it starts a FilterServer of its own on a free port.
+ */
+class LoadGenerator {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java LoadGenerator <image> [requests] [concurrency] [chain;chain;...] [server url]");
+            return;
+        }
+
+        byte[] image = Files.readAllBytes(Paths.get(args[0]));
+        int total = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        String[] chains = (args.length > 3 ? args[3] : "saturate:3;rotate:25,blur:4;greyscale,sharpen").split(";");
+
+        FilterServer server = null;
+        String url;
+        if (args.length > 4) {
+            url = args[4];
+        } else {
+            server = new FilterServer(0, FilterServer.DEFAULT_CACHE_BYTES);
+            server.start();
+            url = "http://localhost:" + server.getPort();
+        }
+
+        HttpClient client = HttpClient.newBuilder().executor(Threads.ioExecutor()).build();
+
+        long[] latencies = new long[total];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        long start = System.nanoTime();
+
+        ArrayList<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < concurrency; i ++) {
+            Thread thread = Threads.ioThreadFactory().newThread(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < total) {
+                    String chain = chains[index % chains.length];
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(
+                            url + "/filter?chain=" + URLEncoder.encode(chain, StandardCharsets.UTF_8)
+                        ))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(image))
+                        .build();
+
+                    long sent = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        if (response.statusCode() != 200) {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        failed.incrementAndGet();
+                    }
+                    latencies[index] = System.nanoTime() - sent;
+                }
+            });
+            thread.start();
+            clients.add(thread);
+        }
+
+        for (Thread thread : clients) {
+            thread.join();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+
+        System.out.println(total + " requests, " + concurrency + " at a time, " + chains.length + " different chains");
+        System.out.println(String.format("%.1f requests/sec, %d failed", total / seconds, failed.get()));
+        System.out.println(String.format(
+            "latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+            percentile(latencies, 0.50) / 1e6,
+            percentile(latencies, 0.90) / 1e6,
+            percentile(latencies, 0.99) / 1e6,
+            latencies[total - 1] / 1e6
+        ));
+
+        HttpResponse<String> stats = client.send(
+            HttpRequest.newBuilder(URI.create(url + "/stats")).build(),
+            HttpResponse.BodyHandlers.ofString()
+        );
+        for (String line : stats.body().split("\n")) {
+            System.out.println("server " + line);
+        }
+
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    // The value [fraction] of the way through [sorted]
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+}
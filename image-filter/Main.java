@@ -4,9 +4,11 @@ class Main {
         ImageManager source = new ImageManager("./images/input.jpg");
         ImageManager target = source.clone("output.jpg");
 
-        Filter.rotate(target, 25);
-        Filter.scale(target, 1.3);
-        Filter.saturate(target, 3);
+        new Pipeline()
+            .rotate(25)
+            .scale(1.3)
+            .saturate(3)
+            .execute(target);
     }
 
 }
@@ -0,0 +1,179 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Measures how long each filter and each read, write and clone takes,
+ * so you can find out which step of a slow job is the slow one.
+ *
+ * It's off unless Java is started with -Dfilter.metrics=true. When it's
+ * on, each measured step records:
+ *
+ *  - the time it took, and megapixels per second
+ *  - how many bytes it allocated (on the calling thread only, so work
+ *    done by TileExecutor's threads isn't counted)
+ *  - a Java Flight Recorder event, "imagefilter.Stage", which shows up
+ *    on the timeline when recording with -XX:StartFlightRecording
+ *  - running totals per step, in a JMX bean named
+ *    imagefilter:type=Stage,name=<step>, which JConsole or VisualVM can
+ *    watch while the program runs
+ *
+ * Measuring looks like this:
+ *
+ *   Metrics.Timer timer = Metrics.start("saturate");
+ *   saturateRaster(image, amount);
+ *   Metrics.stop(timer, image);
+ *
+ * When it's off, start() returns null and stop() does nothing with it.
+ * ENABLED is a static final constant, so the JIT compiler sees that and
+ * leaves the measuring out of the compiled code altogether.
+ */
+class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("filter.metrics");
+
+    // Flight Recorder is missing from some Java runtimes
+    private static final boolean FLIGHT_RECORDER = hasFlightRecorder();
+
+    private static ConcurrentHashMap<String, StageStats> stages = new ConcurrentHashMap<String, StageStats>();
+
+    /**
+     * One step being measured
+     */
+    static class Timer {
+
+        String stage;
+        long startNanos;
+        long startBytes;
+        StageEvent event;
+
+    }
+
+    /**
+     * Start measuring [stage], or return null if metrics are off
+     */
+    public static Timer start(String stage) {
+        if (!ENABLED) {
+            return null;
+        }
+
+        Timer timer = new Timer();
+        timer.stage = stage;
+        if (FLIGHT_RECORDER) {
+            timer.event = new StageEvent();
+            timer.event.begin();
+        }
+        timer.startBytes = allocatedBytes();
+        timer.startNanos = System.nanoTime();
+        return timer;
+    }
+
+    /**
+     * Finish measuring, counting [image]'s pixels as the ones worked on
+     */
+    public static void stop(Timer timer, ImageManager image) {
+        if (timer == null) {
+            return;
+        }
+
+        stop(timer, (long) image.getWidth() * image.getHeight());
+    }
+
+    /**
+     * Finish measuring a step that worked on [pixels] pixels
+     */
+    public static void stop(Timer timer, long pixels) {
+        if (timer == null) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - timer.startNanos;
+        long allocated = timer.startBytes < 0 ? 0 : allocatedBytes() - timer.startBytes;
+
+        stats(timer.stage).record(nanos, pixels, allocated);
+
+        if (timer.event != null) {
+            timer.event.stage = timer.stage;
+            timer.event.pixels = pixels;
+            timer.event.allocatedBytes = allocated;
+            timer.event.commit();
+        }
+    }
+
+    /**
+     * The running totals for [stage], registered with JMX the first time
+     */
+    static StageStats stats(String stage) {
+        StageStats stats = stages.get(stage);
+        if (stats != null) {
+            return stats;
+        }
+
+        return stages.computeIfAbsent(stage, name -> {
+            StageStats created = new StageStats(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    created,
+                    new ObjectName("imagefilter:type=Stage,name=" + ObjectName.quote(name))
+                );
+            } catch (JMException e) {
+                System.out.println("Error: Couldn't register metrics for " + name + ": " + e);
+            }
+            return created;
+        });
+    }
+
+    /**
+     * A table of the totals so far for every step, slowest first
+     */
+    public static String report() {
+        // slowest first, with the name breaking ties
+        ArrayList<StageStats> byTime = new ArrayList<StageStats>(stages.values());
+        byTime.sort(Comparator.comparingDouble(StageStats::getTotalMillis).reversed()
+            .thenComparing(StageStats::getName));
+
+        StringBuilder report = new StringBuilder(String.format(
+            "%-22s %8s %10s %10s %10s %12s%n",
+            "stage", "calls", "total ms", "ms/call", "MP/s", "alloc MB"
+        ));
+        for (StageStats stats : byTime) {
+            report.append(String.format(
+                "%-22s %8d %10.1f %10.2f %10.1f %12.1f%n",
+                stats.getName(),
+                stats.getCalls(),
+                stats.getTotalMillis(),
+                stats.getTotalMillis() / Math.max(1, stats.getCalls()),
+                stats.getMegapixelsPerSecond(),
+                stats.getAllocatedBytes() / 1e6
+            ));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Bytes this thread has allocated so far, or -1 if the JVM won't say
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+
+        return -1;
+    }
+
+    private static boolean hasFlightRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,580 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A recipe of filters to run on an image, one after another.
+ *
+ * Calling Filter methods back to back writes (and re-compresses) the
+ * image file after every step. A Pipeline instead just records each
+ * filter you add, and only touches the image when you execute() it:
+ * neighbouring color filters are fused so the image is walked once
+ * for all of them, neighbouring rotations, scales and translations are
+ * combined so the image is resampled once for all of them, and the
+ * file is written once at the very end.
+ *
+ * So a pipeline's rotations, scales and translations don't give
+ * exactly the same pixels as calling the Filter methods one after
+ * another. The image is resampled once rather than once per step, and
+ * Warp's NEAREST picks the source pixel closest to each position, where
+ * Filter.rotate, scale and translate cut off the fraction (so their
+ * output sits up to a pixel off). Main's output changed this way
+ * when it moved to a Pipeline.
+ *
+ * For example,
+ *
+ *   new Pipeline().rotate(25).scale(1.3).saturate(3).execute(image);
+ *
+ * By default everything runs on the calling thread. Give the pipeline
+ * a TileExecutor with parallel() to spread each step across cores.
+ */
+class Pipeline {
+
+    /**
+     * One step of the pipeline, which changes the image's pixels in place
+     */
+    interface Stage {
+        void apply(ImageManager image, TileExecutor tiles);
+
+        /**
+         * What Metrics calls this step
+         */
+        default String name() {
+            return "stage";
+        }
+
+        /**
+         * Exactly what this step does, such that two steps with the same
+         * key always turn the same input into the same output, or null if
+         * we can't tell (say, for a lambda). StageCache uses it to find
+         * results it can reuse.
+         */
+        default String key() {
+            return null;
+        }
+    }
+
+    /**
+     * [stage], under a name Metrics can show and a key (which may be
+     * null) StageCache can use
+     */
+    static Stage named(String name, String key, Stage stage) {
+        return new Stage() {
+            public void apply(ImageManager image, TileExecutor tiles) {
+                stage.apply(image, tiles);
+            }
+
+            public String name() {
+                return name;
+            }
+
+            public String key() {
+                return key;
+            }
+        };
+    }
+
+    /**
+     * A run of PointOps applied together in a single pass over the pixels
+     */
+    static class PointStage implements Stage {
+
+        private ArrayList<PointOp> ops = new ArrayList<PointOp>();
+
+        // the key of each op added, before fusing; null entries for ops
+        // without one
+        private ArrayList<String> keys = new ArrayList<String>();
+
+        void add(PointOp op, String key) {
+            keys.add(key);
+
+            int last = ops.size() - 1;
+
+            // two lookup tables in a row become a single table
+            if (last >= 0 && ops.get(last) instanceof ChannelLut && op instanceof ChannelLut) {
+                ops.set(last, ((ChannelLut) ops.get(last)).then((ChannelLut) op));
+                return;
+            }
+
+            // and so do two color matrices in a row
+            if (last >= 0 && ops.get(last) instanceof ColorMatrix && op instanceof ColorMatrix) {
+                ops.set(last, ((ColorMatrix) ops.get(last)).then((ColorMatrix) op));
+                return;
+            }
+
+            ops.add(op);
+        }
+
+        /**
+         * All of this stage's ops rolled into one PointOp
+         */
+        PointOp fused() {
+            PointOp[] chain = ops.toArray(new PointOp[0]);
+
+            if (chain.length == 1) {
+                return chain[0];
+            }
+
+            return c -> {
+                for (PointOp op : chain) {
+                    c = op.filter(c);
+                }
+                return c;
+            };
+        }
+
+        public void apply(ImageManager image, TileExecutor tiles) {
+            tiles.point(image, fused());
+        }
+
+        public String name() {
+            return "point";
+        }
+
+        public String key() {
+            return keys.contains(null) ? null : "point:" + String.join(";", keys);
+        }
+
+    }
+
+    /**
+     * A run of rotations, scales and translations done in one resample
+     */
+    static class WarpStage implements Stage {
+
+        private Warp warp;
+
+        Warp warp() {
+            return warp;
+        }
+
+        public void apply(ImageManager image, TileExecutor tiles) {
+            if (!warp.isIdentity()) {
+                tiles.gather(image, warp);
+            }
+        }
+
+        public String name() {
+            return "warp";
+        }
+
+        public String key() {
+            return warp.toString();
+        }
+
+    }
+
+    /**
+     * A GatherOp, like a Kernel or BoxBlur, run over the whole image
+     */
+    static class GatherStage implements Stage {
+
+        private GatherOp op;
+        private String name;
+        private String key;
+
+        GatherOp op() {
+            return op;
+        }
+
+        public void apply(ImageManager image, TileExecutor tiles) {
+            tiles.gather(image, op);
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public String key() {
+            return key;
+        }
+
+    }
+
+    private ArrayList<Stage> stages = new ArrayList<Stage>();
+
+    private Warp.Interpolation interpolation = Warp.Interpolation.NEAREST;
+
+    // null until edgePolicy() is called, so each kind of step keeps its
+    // own default: black for warps, repeated edge pixels for blurs
+    private EdgePolicy edgePolicy;
+
+    /**
+     * Build a pipeline from a line of text, so filter chains can be given
+     * on the command line. Steps are separated by commas, and a step's
+     * numbers follow its name after colons, for example:
+     *
+     *   rotate:25,scale:1.3,saturate:3,translate:10:-5,contrasty
+     *
+     * Every Pipeline method can be used this way, with interpolation
+     * taking nearest, bilinear or bicubic, and edgePolicy taking
+     * constant, clamp, wrap or mirror.
+     */
+    public static Pipeline parse(String description) {
+        return parse(description, 1);
+    }
+
+    /**
+     * Like parse(description), but for running on a shrunken copy of the
+     * image that is [scale] times the size (0.25 for a quarter), as in
+     * Preview. Steps measured in pixels (translate, blur, gaussianBlur)
+     * are shrunk to match, so the result looks like a small version of
+     * running the pipeline at full size. Rotations and scales are around
+     * the center, so they don't change.
+     */
+    public static Pipeline parse(String description, double scale) {
+        Pipeline pipeline = new Pipeline();
+
+        for (String step : description.split(",")) {
+            step = step.trim();
+            if (step.isEmpty()) {
+                continue;
+            }
+
+            String[] parts = step.split(":");
+            String name = parts[0];
+
+            if (name.equals("brighter")) {
+                arguments(parts, 0);
+                pipeline.brighter();
+            } else if (name.equals("darker")) {
+                arguments(parts, 0);
+                pipeline.darker();
+            } else if (name.equals("redder")) {
+                arguments(parts, 0);
+                pipeline.redder();
+            } else if (name.equals("greener")) {
+                arguments(parts, 0);
+                pipeline.greener();
+            } else if (name.equals("bluer")) {
+                arguments(parts, 0);
+                pipeline.bluer();
+            } else if (name.equals("logExposureGreyscale")) {
+                arguments(parts, 0);
+                pipeline.logExposureGreyscale();
+            } else if (name.equals("logExposure")) {
+                arguments(parts, 0);
+                pipeline.logExposure();
+            } else if (name.equals("contrasty")) {
+                arguments(parts, 0);
+                pipeline.contrasty();
+            } else if (name.equals("saturate")) {
+                pipeline.saturate(arguments(parts, 1)[0]);
+            } else if (name.equals("greyscale")) {
+                arguments(parts, 0);
+                pipeline.greyscale();
+            } else if (name.equals("greyscaleGeom")) {
+                arguments(parts, 0);
+                pipeline.greyscaleGeom();
+            } else if (name.equals("translate")) {
+                double[] amounts = arguments(parts, 2);
+                pipeline.translate((int) Math.round(amounts[0] * scale), (int) Math.round(amounts[1] * scale));
+            } else if (name.equals("rotate")) {
+                pipeline.rotate(arguments(parts, 1)[0]);
+            } else if (name.equals("scale")) {
+                pipeline.scale(arguments(parts, 1)[0]);
+            } else if (name.equals("autoLevels")) {
+                arguments(parts, 0);
+                pipeline.autoLevels();
+            } else if (name.equals("equalize")) {
+                arguments(parts, 0);
+                pipeline.equalize();
+            } else if (name.equals("sharpen")) {
+                arguments(parts, 0);
+                pipeline.sharpen();
+            } else if (name.equals("edges")) {
+                arguments(parts, 0);
+                pipeline.edges();
+            } else if (name.equals("blur")) {
+                pipeline.blur((int) Math.round(arguments(parts, 1)[0] * scale));
+            } else if (name.equals("gaussianBlur")) {
+                pipeline.gaussianBlur(arguments(parts, 1)[0] * scale);
+            } else if (name.equals("interpolation") && parts.length == 2) {
+                pipeline.interpolation(Warp.Interpolation.valueOf(parts[1].toUpperCase()));
+            } else if (name.equals("edgePolicy") && parts.length == 2) {
+                pipeline.edgePolicy(EdgePolicy.valueOf(parts[1].toUpperCase()));
+            } else {
+                throw new IllegalArgumentException("Unknown filter step: " + step);
+            }
+        }
+
+        return pipeline;
+    }
+
+    // Read the [count] numbers after a step's name
+    private static double[] arguments(String[] parts, int count) {
+        if (parts.length != count + 1) {
+            throw new IllegalArgumentException(
+                parts[0] + " takes " + count + " number(s), got " + (parts.length - 1)
+            );
+        }
+
+        double[] numbers = new double[count];
+        for (int i = 0; i < count; i ++) {
+            numbers[i] = Double.parseDouble(parts[i + 1]);
+        }
+
+        return numbers;
+    }
+
+    private TileExecutor tiles = TileExecutor.sequential();
+
+    public Pipeline brighter() {
+        return point(Filter::brighterPixel, "brighter");
+    }
+
+    public Pipeline darker() {
+        return point(Filter.DARKER_LUT, "darker");
+    }
+
+    public Pipeline redder() {
+        return point(Filter.REDDER_LUT, "redder");
+    }
+
+    public Pipeline greener() {
+        return point(Filter.GREENER_LUT, "greener");
+    }
+
+    public Pipeline bluer() {
+        return point(Filter.BLUER_LUT, "bluer");
+    }
+
+    public Pipeline logExposureGreyscale() {
+        return point(Filter::logExposureGreyscalePixel, "logExposureGreyscale");
+    }
+
+    public Pipeline logExposure() {
+        return point(Filter.LOG_EXPOSURE_LUT, "logExposure");
+    }
+
+    public Pipeline contrasty() {
+        return point(Filter.CONTRASTY_LUT, "contrasty");
+    }
+
+    public Pipeline saturate(double amount) {
+        return point(c -> Filter.saturatePixel(c, amount), "saturate:" + amount);
+    }
+
+    public Pipeline greyscale() {
+        return point(Filter::greyscalePixel, "greyscale");
+    }
+
+    public Pipeline greyscaleGeom() {
+        return point(Filter::greyscaleGeomPixel, "greyscaleGeom");
+    }
+
+    /**
+     * Add a color matrix. Unlike saturate(), greyscale() or redder(),
+     * a run of matrices is multiplied into one and only clamped once
+     * at the end, rather than after every step.
+     */
+    public Pipeline matrix(ColorMatrix matrix) {
+        return point(matrix);
+    }
+
+    public Pipeline translate(int horiz, int vert) {
+        return warp(newWarp().translate(horiz, vert));
+    }
+
+    public Pipeline rotate(double degrees) {
+        return warp(newWarp().rotate(degrees));
+    }
+
+    public Pipeline scale(double factor) {
+        return warp(newWarp().scale(factor));
+    }
+
+    /**
+     * Add Filter.autoLevels. Its table depends on the image as it is at
+     * this point in the pipeline, so it's worked out when the pipeline runs.
+     */
+    public Pipeline autoLevels() {
+        return stage(named("autoLevels", "autoLevels", (image, tiles) -> tiles.point(
+            image,
+            Histogram.of(image, tiles).autoLevels(Filter.AUTO_LEVELS_CLIP)
+        )));
+    }
+
+    /**
+     * Add Filter.equalize, worked out when the pipeline runs like autoLevels()
+     */
+    public Pipeline equalize() {
+        return stage(named("equalize", "equalize", (image, tiles) -> tiles.point(image, Histogram.of(image, tiles).equalize())));
+    }
+
+    public Pipeline sharpen() {
+        return convolve(Kernel.SHARPEN);
+    }
+
+    public Pipeline edges() {
+        return convolve(Kernel.EDGES);
+    }
+
+    public Pipeline convolve(Kernel kernel) {
+        return gather(edgePolicy == null ? kernel : kernel.withEdges(edgePolicy));
+    }
+
+    public Pipeline blur(int radius) {
+        return gather(new BoxBlur(radius, edgePolicy == null ? EdgePolicy.CLAMP : edgePolicy));
+    }
+
+    public Pipeline gaussianBlur(double sigma) {
+        for (BoxBlur pass : BoxBlur.gaussian(sigma, edgePolicy == null ? EdgePolicy.CLAMP : edgePolicy)) {
+            gather(pass);
+        }
+        return this;
+    }
+
+    /**
+     * Choose how rotate(), scale() and translate() steps added after
+     * this call read between source pixels. The default is NEAREST.
+     */
+    public Pipeline interpolation(Warp.Interpolation interpolation) {
+        this.interpolation = interpolation;
+        return this;
+    }
+
+    /**
+     * Choose what the warps, convolutions and blurs added after this
+     * call read past the edges of the image (see EdgePolicy)
+     */
+    public Pipeline edgePolicy(EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+        return this;
+    }
+
+    private Warp newWarp() {
+        return new Warp(interpolation, edgePolicy == null ? EdgePolicy.CONSTANT : edgePolicy);
+    }
+
+    /**
+     * Add a geometric transform. If the previous step was also a Warp
+     * with the same interpolation and edge policy, the two are multiplied
+     * into one, so the image is only resampled once for the whole run.
+     */
+    public Pipeline warp(Warp warp) {
+        Stage last = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+
+        if (
+            last instanceof WarpStage
+            && ((WarpStage) last).warp.getInterpolation() == warp.getInterpolation()
+            && ((WarpStage) last).warp.getEdges() == warp.getEdges()
+        ) {
+            ((WarpStage) last).warp.then(warp);
+        } else {
+            WarpStage stage = new WarpStage();
+            stage.warp = new Warp(warp.getInterpolation(), warp.getEdges()).then(warp);
+            stages.add(stage);
+        }
+
+        return this;
+    }
+
+    /**
+     * Add any per-pixel color filter. If the previous step was also a
+     * per-pixel filter, the two are fused into the same pass.
+     */
+    public Pipeline point(PointOp op) {
+        // a ColorMatrix can say exactly what it does; anything else can't
+        return point(op, op instanceof ColorMatrix ? op.toString() : null);
+    }
+
+    private Pipeline point(PointOp op, String key) {
+        Stage last = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+
+        if (last instanceof PointStage) {
+            ((PointStage) last).add(op, key);
+        } else {
+            PointStage fused = new PointStage();
+            fused.add(op, key);
+            stages.add(fused);
+        }
+
+        return this;
+    }
+
+    /**
+     * Add any geometric filter that reads from a copy of the image
+     */
+    public Pipeline gather(GatherOp op) {
+        GatherStage stage = new GatherStage();
+        stage.op = op;
+        // lambdas have made-up class names, so only name real classes
+        stage.name = op.getClass().isSynthetic() ? "gather" : op.getClass().getSimpleName();
+        // and only our own ops describe themselves fully in toString()
+        stage.key = op instanceof Kernel || op instanceof BoxBlur || op instanceof Warp ? op.toString() : null;
+        return stage(stage);
+    }
+
+    /**
+     * Add any other step that needs to see the whole image at once
+     */
+    public Pipeline stage(Stage stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * The steps recorded so far, after fusing
+     */
+    List<Stage> stages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Run the steps of this pipeline on [tiles] instead of the calling thread
+     */
+    public Pipeline parallel(TileExecutor tiles) {
+        this.tiles = tiles;
+        return this;
+    }
+
+    /**
+     * Run every step on the image without writing it out
+     */
+    public void run(ImageManager image) {
+        for (Stage stage : stages) {
+            run(stage, image);
+        }
+    }
+
+    /**
+     * Run one of this pipeline's steps on the image, on its TileExecutor
+     */
+    void run(Stage stage, ImageManager image) {
+        Metrics.Timer timer = Metrics.start(stage.name());
+        stage.apply(image, tiles);
+        Metrics.stop(timer, image);
+    }
+
+    /**
+     * Like run(), but on a copy of [source] that's returned as a new
+     * image for [path], reusing whatever results [cache] has from
+     * running the same first few steps on the same picture before. Only
+     * the steps after those are run. Handy when trying out different
+     * settings for the last steps of a long pipeline.
+     */
+    public ImageManager run(ImageManager source, StageCache cache, String path) {
+        return cache.run(this, source, path);
+    }
+
+    /**
+     * Run every step on the image, then write the image to its file once
+     */
+    public void execute(ImageManager image) {
+        run(image);
+        image.write();
+    }
+
+    /**
+     * Run every step on the image, then start writing it on an encoder
+     * thread and return without waiting (see ImageManager.writeAsync),
+     * so the next image can be filtered while this one is saved.
+     */
+    public CompletableFuture<Void> executeAsync(ImageManager image) {
+        run(image);
+        return image.writeAsync();
+    }
+
+}
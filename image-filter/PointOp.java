@@ -0,0 +1,14 @@
+/**
+ * A filter that decides each pixel's new color from only that
+ * pixel's old color, like saturate or greyscale. Because they don't
+ * look at their neighbours, any number of PointOps can be run
+ * back-to-back on a pixel in a single pass over the image.
+ */
+interface PointOp {
+
+    /**
+     * Given a packed 0xRRGGBB pixel, return the filtered 0xRRGGBB pixel
+     */
+    int filter(int rgb);
+
+}
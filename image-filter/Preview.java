@@ -0,0 +1,208 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Quick, small versions of a filtered image, for trying out filter
+ * chains before running them on the whole thing.
+ *
+ * A 48 megapixel photo takes seconds to decode and filter, but a screen
+ * only shows a couple of megapixels of it. So a Preview decodes the
+ * file once, skipping most of its pixels (ImageReadParam's source
+ * subsampling reads every 2nd, 3rd, ... pixel of every 2nd, 3rd, ...
+ * row), down to about the biggest size we'll want to show.
+ *
+ * Smaller views come from a pyramid: level 0 is that decoded image,
+ * level 1 is half its width and height, level 2 a quarter, and so on,
+ * each made from the one above by averaging 2 x 2 squares of pixels.
+ * Levels are only made the first time they're asked for.
+ *
+ * render() then filters a copy of the smallest level that still fills
+ * the size asked for, so trying a new chain takes time in proportion to
+ * the preview's pixels, not the photo's. Each step's result is kept in
+ * a StageCache, so trying a new setting for the last step of a chain
+ * only reruns that step. renderFull() runs the same chain again at full
+ * size for the final result.
+ *
+ * Usage: java Preview <image> <filter chain> <width> <height>
+ *  writes preview.jpg, and prints how long each step took
+ */
+class Preview {
+
+    private String path;
+    private int fullWidth;
+    private int fullHeight;
+
+    // levels.get(n) is 1 / 2^n the size of levels.get(0)
+    private ArrayList<ImageManager> levels = new ArrayList<ImageManager>();
+
+    // previews are small, so this holds a good few steps' worth
+    private StageCache stages = new StageCache(64L * 1024 * 1024);
+
+    /**
+     * Decode [path] at about [maxWidth] x [maxHeight] (never smaller,
+     * unless the image itself is), ready for previews up to that size.
+     */
+    public Preview(String path, int maxWidth, int maxHeight) throws IOException {
+        if (maxWidth < 1 || maxHeight < 1) {
+            throw new IllegalArgumentException("Preview size must be positive");
+        }
+
+        this.path = path;
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(path))) {
+            if (input == null) {
+                throw new IOException("Couldn't open " + path);
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Don't know how to read " + path);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true);
+                this.fullWidth = reader.getWidth(0);
+                this.fullHeight = reader.getHeight(0);
+
+                // skip as many pixels as we can while staying at least
+                // as big as the preview in both directions
+                int step = Math.max(1, Math.min(fullWidth / maxWidth, fullHeight / maxHeight));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                levels.add(new ImageManager("preview.jpg", reader.read(0, param)));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.out.println("Usage: java Preview <image> <filter chain> <width> <height>");
+            System.out.println("  e.g. java Preview ./images/input.jpg rotate:25,blur:8 800 600");
+            return;
+        }
+
+        int width = Integer.parseInt(args[2]);
+        int height = Integer.parseInt(args[3]);
+
+        long start = System.nanoTime();
+        Preview preview = new Preview(args[0], width, height);
+        long decoded = System.nanoTime();
+        ImageManager result = preview.render(args[1], width, height);
+        long rendered = System.nanoTime();
+        result.write("preview.jpg");
+
+        System.out.println("Full size " + preview.getFullWidth() + " x " + preview.getFullHeight()
+                + ", preview " + result.getWidth() + " x " + result.getHeight());
+        System.out.println(String.format("Decode %.1fms, filter %.1fms",
+                (decoded - start) / 1e6, (rendered - decoded) / 1e6));
+    }
+
+    public int getFullWidth() {
+        return fullWidth;
+    }
+
+    public int getFullHeight() {
+        return fullHeight;
+    }
+
+    /**
+     * Pyramid level [n], made now if it hasn't been yet. Don't change
+     * it; render() works on a copy.
+     */
+    public ImageManager level(int n) {
+        while (levels.size() <= n) {
+            levels.add(halve(levels.get(levels.size() - 1)));
+        }
+        return levels.get(n);
+    }
+
+    /**
+     * How many times smaller than the full image level [n] is, like
+     * 0.25 for a quarter of the width
+     */
+    public double scaleOf(int n) {
+        return (double) level(n).getWidth() / fullWidth;
+    }
+
+    /**
+     * Run [chain] (written like "rotate:25,blur:8", see Pipeline.parse)
+     * on the smallest level that's at least [width] x [height], and
+     * return the result.
+     */
+    public ImageManager render(String chain, int width, int height) {
+        int n = 0;
+        // stop halving before either side gets smaller than asked for
+        // (or before it gets down to a single pixel)
+        while (
+            level(n).getWidth() / 2 >= width
+            && level(n).getHeight() / 2 >= height
+            && level(n).getWidth() > 1
+            && level(n).getHeight() > 1
+        ) {
+            n ++;
+        }
+
+        return Pipeline.parse(chain, scaleOf(n)).run(level(n), stages, "preview.jpg");
+    }
+
+    /**
+     * Run [chain] on the full size image and save it to [outputPath]
+     */
+    public void renderFull(String chain, String outputPath) {
+        ImageManager image = new ImageManager(path);
+        Pipeline.parse(chain).run(image);
+        image.write(outputPath);
+    }
+
+    /**
+     * Half the width and height (rounded up), each pixel the average of a
+     * 2 x 2 square. On odd sizes, the last row or column is averaged with
+     * itself.
+     */
+    static ImageManager halve(ImageManager image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int halfWidth = (width + 1) / 2;
+        int halfHeight = (height + 1) / 2;
+
+        ImageManager half = new ImageManager("level.jpg", halfWidth, halfHeight);
+        int[] source = image.getPixels();
+        int[] target = half.getPixels();
+
+        for (int y = 0; y < halfHeight; y ++) {
+            int top = 2 * y * width;
+            int bottom = Math.min(2 * y + 1, height - 1) * width;
+
+            for (int x = 0; x < halfWidth; x ++) {
+                int left = 2 * x;
+                int right = Math.min(2 * x + 1, width - 1);
+
+                int a = source[top + left];
+                int b = source[top + right];
+                int c = source[bottom + left];
+                int d = source[bottom + right];
+
+                // + 2 so the divide by 4 rounds to the nearest
+                target[y * halfWidth + x] = Filter.rgb(
+                    (Filter.red(a) + Filter.red(b) + Filter.red(c) + Filter.red(d) + 2) / 4,
+                    (Filter.green(a) + Filter.green(b) + Filter.green(c) + Filter.green(d) + 2) / 4,
+                    (Filter.blue(a) + Filter.blue(b) + Filter.blue(c) + Filter.blue(d) + 2) / 4
+                );
+            }
+        }
+
+        return half;
+    }
+
+}
@@ -0,0 +1,245 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An image stored on disk exactly the way it sits in memory, opened by
+ * mapping the file instead of reading it.
+ *
+ * Decoding a JPEG is slow, so when the same pictures get filtered over
+ * and over it's worth decoding them once and saving the raw pixels. A
+ * .raw file is a 16 byte header followed by every pixel as a packed
+ * 0xAARRGGBB int (alpha is always 0xFF), row by row:
+ *
+ *   bytes 0-3    "RAWI"
+ *   bytes 4-7    format version, currently 1
+ *   bytes 8-11   width
+ *   bytes 12-15  height
+ *
+ * Everything after the magic bytes is little-endian, which is what most
+ * CPUs use, so the pixels can be used without swapping any bytes.
+ *
+ * FileChannel.map() makes the file's bytes show up in memory without
+ * copying them: the operating system loads pages of the file as we touch
+ * them, and any other process mapping the same file shares those same
+ * pages. So opening a RawImage is nearly instant no matter how big it
+ * is, and color filters can run right on the mapped pixels with apply().
+ *
+ * ImageManager reads and writes .raw files too, whenever the file name
+ * ends in ".raw".
+ */
+class RawImage {
+
+    public static final int MAGIC = 0x52415749; // "RAWI"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+
+    private String path;
+    private int width;
+    private int height;
+
+    private MappedByteBuffer mapped;
+    // the pixels, starting right after the header
+    private IntBuffer pixels;
+
+    private RawImage(String path, int width, int height, MappedByteBuffer mapped) {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.mapped = mapped;
+
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        mapped.position(HEADER_BYTES);
+        this.pixels = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        mapped.position(0);
+    }
+
+    /**
+     * True if [path] names a .raw file
+     */
+    public static boolean isRaw(String path) {
+        return path.toLowerCase().endsWith(".raw");
+    }
+
+    /**
+     * Map the .raw file at [path]. With [writable] set, changes made by
+     * apply() and setPixel() go straight back into the file.
+     */
+    public static RawImage open(String path, boolean writable) throws IOException {
+        try (
+            RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r");
+            FileChannel channel = file.getChannel()
+        ) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException(path + " is too short to be a raw image");
+            }
+            // one mapping can't be over 2GB, which is also past what fits
+            // in an ImageManager's int[]
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too big (" + channel.size() + " bytes) to open whole;"
+                        + " open it with LargeImage.open instead");
+            }
+
+            MappedByteBuffer mapped = channel.map(
+                writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                0,
+                channel.size()
+            );
+
+            // the magic number reads the same way on every machine
+            if (mapped.order(ByteOrder.BIG_ENDIAN).getInt(0) != MAGIC) {
+                throw new IOException(path + " isn't a raw image");
+            }
+
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            int version = mapped.getInt(4);
+            int width = mapped.getInt(8);
+            int height = mapped.getInt(12);
+
+            if (version != VERSION) {
+                throw new IOException(path + " is raw format version " + version + ", expected " + VERSION);
+            }
+            if (width < 0 || height < 0 || channel.size() != HEADER_BYTES + 4L * width * height) {
+                throw new IOException(path + " has the wrong size for a " + width + " x " + height + " image");
+            }
+
+            // the mapping stays valid after the file is closed
+            return new RawImage(path, width, height, mapped);
+        }
+    }
+
+    /**
+     * Save [width] x [height] packed 0xRRGGBB [pixels] as a .raw file at [path]
+     */
+    public static void write(String path, int width, int height, int[] pixels) throws IOException {
+        long size = HEADER_BYTES + 4L * width * height;
+        if (size > Integer.MAX_VALUE) {
+            // a single mapping can't be bigger than 2GB
+            throw new IOException("Image is too big for a raw file: " + width + " x " + height);
+        }
+
+        new File(path).delete();
+
+        try (
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            FileChannel channel = file.getChannel()
+        ) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            mapped.order(ByteOrder.BIG_ENDIAN).putInt(0, MAGIC);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            mapped.putInt(4, VERSION);
+            mapped.putInt(8, width);
+            mapped.putInt(12, height);
+
+            RawImage raw = new RawImage(path, width, height, mapped);
+            for (int i = 0; i < width * height; i ++) {
+                raw.pixels.put(i, 0xFF000000 | pixels[i]);
+            }
+
+            mapped.force();
+        }
+    }
+
+    /**
+     * Copy every pixel, as packed 0xRRGGBB ints, into [target]
+     */
+    public void copyTo(int[] target) {
+        pixels.get(0, target, 0, width * height);
+
+        for (int i = 0; i < width * height; i ++) {
+            target[i] &= 0xFFFFFF;
+        }
+    }
+
+    /**
+     * Make an ImageManager holding a copy of this image, which will be
+     * saved to [path] when written
+     */
+    public ImageManager toImageManager(String path) {
+        ImageManager image = new ImageManager(path, width, height);
+        copyTo(image.getPixels());
+        return image;
+    }
+
+    /**
+     * Get the packed 0xRRGGBB value at (x, y). Anything outside of the
+     * image reads as black.
+     */
+    public int getPixel(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+
+        return pixels.get(y * width + x) & 0xFFFFFF;
+    }
+
+    /**
+     * Set the pixel at (x, y) to a packed 0xRRGGBB value. Only works if
+     * the image was opened writable.
+     */
+    public void setPixel(int x, int y, int rgb) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            System.out.println("Error: attempted to setPixel outside of the image bounds.");
+            System.out.println("Erroneous coordinates: " + x + ", " + y);
+            return;
+        }
+
+        pixels.put(y * width + x, 0xFF000000 | rgb);
+    }
+
+    /**
+     * Run a color filter over every pixel, right in the mapped file. The
+     * image has to have been opened writable.
+     */
+    public void apply(PointOp op) {
+        for (int i = 0; i < width * height; i ++) {
+            pixels.put(i, 0xFF000000 | op.filter(pixels.get(i) & 0xFFFFFF));
+        }
+    }
+
+    /**
+     * Run [pipeline] right in the mapped file, as long as it only has
+     * color filters. Returns false, without changing anything, if it has
+     * a step that moves pixels around (open the image as an ImageManager
+     * for those).
+     */
+    public boolean apply(Pipeline pipeline) {
+        for (Pipeline.Stage stage : pipeline.stages()) {
+            if (!(stage instanceof Pipeline.PointStage)) {
+                return false;
+            }
+        }
+
+        for (Pipeline.Stage stage : pipeline.stages()) {
+            apply(((Pipeline.PointStage) stage).fused());
+        }
+        return true;
+    }
+
+    /**
+     * Make sure every change so far has made it to the file on disk
+     */
+    public void flush() {
+        if (!mapped.isReadOnly()) {
+            mapped.force();
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+}
@@ -0,0 +1,726 @@
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a Pipeline over an image using several worker JVMs on the same
+ * machine, each filtering a share of the image's tiles.
+ *
+ * A single JVM tops out at the cores (and heap) it gets, and on the
+ * biggest mosaics it's the bottleneck. Here the coordinator (this
+ * process) starts [workers] more JVMs with "--worker", which connect
+ * back to it over a socket on localhost. It then cuts the output into
+ * tiles, and for each tile sends a worker the window of the source it
+ * needs, gets the finished tile back and puts it in place. Whichever
+ * worker is free takes the next tile, so a slow one doesn't hold up the
+ * rest.
+ *
+ * The window is worked out the same way StripProcessor does it, walking
+ * backwards through the pipeline from the tile:
+ *
+ *  - a color filter needs the same pixels it makes
+ *  - a rotation, scale or translation needs Warp.sourceBounds of them
+ *  - a Kernel or BoxBlur needs a halo around them as wide as its
+ *    radius. The blur is wrong near the edges of its window, where it
+ *    can't see the real neighbours, but the halo is only there to be
+ *    thrown away, so those pixels never make it into the tile.
+ *
+ * So each tile comes out exactly as it would from running the pipeline
+ * on the whole image in one process. autoLevels, equalize and custom
+ * steps need to see the whole image at once, so pipelines with those
+ * can't be split up.
+ *
+ * The workers stay running between run() calls until close().
+ *
+ * Usage: java ShardedRunner <input> <output> <filter chain> [workers]
+ *  e.g. java ShardedRunner mosaic.raw out.raw rotate:10,gaussianBlur:2 4
+ * Images ending in .raw are opened as LargeImages, so they can be
+ * bigger than an ImageManager can hold.
+ *
+ * Or: java ShardedRunner --verify [image] [workers]
+ * runs a list of filter chains both ways, on [workers] worker JVMs and
+ * in this one, and checks every pixel matches.
+ */
+class ShardedRunner implements AutoCloseable {
+
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    // how long to wait for a worker JVM to start and connect
+    private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+
+    // chains --verify tries, covering every kind of step that can be split
+    private static final String[] VERIFY_CHAINS = {
+        "saturate:2,contrasty",
+        "rotate:25",
+        "interpolation:bilinear,rotate:25,scale:1.3",
+        "interpolation:bicubic,rotate:-40,translate:30:-12",
+        "blur:5",
+        "gaussianBlur:3,sharpen",
+        "edgePolicy:mirror,blur:9,edges",
+        "edgePolicy:wrap,blur:7,interpolation:bilinear,rotate:15",
+        "rotate:25,blur:4,scale:0.8,saturate:3",
+        "greyscale,gaussianBlur:2,interpolation:bilinear,scale:1.7,redder,sharpen"
+    };
+
+    /**
+     * Where windows of the source are read from and finished tiles are
+     * written to: an ImageManager or a LargeImage
+     */
+    private interface Canvas {
+        int getWidth();
+
+        int getHeight();
+
+        void get(Rectangle region, int[] pixels);
+
+        void set(Rectangle region, int[] pixels);
+    }
+
+    /**
+     * The coordinator's end of the connection to one worker
+     */
+    private static class Connection {
+
+        Process process;
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+
+    }
+
+    private int workers;
+    private int tileSize;
+
+    // empty until the first run starts the workers
+    private ArrayList<Connection> connections = new ArrayList<Connection>();
+
+    public ShardedRunner(int workers) {
+        this(workers, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param workers - how many worker JVMs to start
+     * @param tileSize - how big a square each worker makes at a time
+     */
+    public ShardedRunner(int workers, int tileSize) {
+        if (workers < 1 || tileSize < 1) {
+            throw new IllegalArgumentException("Worker count and tile size must be positive");
+        }
+
+        this.workers = workers;
+        this.tileSize = tileSize;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2 && args[0].equals("--worker")) {
+            work(Integer.parseInt(args[1]));
+            return;
+        }
+
+        if (args.length >= 1 && args.length <= 3 && args[0].equals("--verify")) {
+            String path = args.length >= 2 ? args[1] : "images/input.jpg";
+            int workers = args.length == 3 ? Integer.parseInt(args[2]) : 3;
+            System.exit(verify(path, workers) ? 0 : 1);
+        }
+
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: java ShardedRunner <input> <output> <filter chain> [workers]");
+            System.out.println("  e.g. java ShardedRunner mosaic.raw out.raw rotate:10,gaussianBlur:2 4");
+            System.out.println("   or: java ShardedRunner --verify [image] [workers]");
+            return;
+        }
+
+        int workers = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        long start = System.nanoTime();
+
+        try (ShardedRunner runner = new ShardedRunner(workers)) {
+            boolean worked;
+
+            if (RawImage.isRaw(args[0])) {
+                try (
+                    LargeImage source = LargeImage.open(args[0], false);
+                    LargeImage target = LargeImage.create(args[1], source.getWidth(), source.getHeight())
+                ) {
+                    worked = runner.run(source, target, args[2]);
+                }
+            } else {
+                ImageManager source = new ImageManager(args[0]);
+                ImageManager target = new ImageManager(args[1], source.getWidth(), source.getHeight());
+                worked = runner.run(source, target, args[2]);
+                if (worked) {
+                    target.write();
+                }
+            }
+
+            if (worked) {
+                System.out.println(String.format("Done in %.2fs on %d workers", (System.nanoTime() - start) / 1e9, workers));
+            }
+        }
+    }
+
+    /**
+     * Fill in [target] with [source] run through the filter chain
+     * [chain] (see Pipeline.parse). The two images have to be the same
+     * size, and can't be the same image.
+     *
+     * @return whether it worked; if not, the error is printed
+     */
+    public boolean run(ImageManager source, ImageManager target, String chain) throws InterruptedException {
+        return run(canvas(source), canvas(target), chain);
+    }
+
+    /**
+     * run(), for images too big for an ImageManager
+     */
+    public boolean run(LargeImage source, LargeImage target, String chain) throws InterruptedException {
+        return run(canvas(source), canvas(target), chain);
+    }
+
+    private boolean run(Canvas source, Canvas target, String chain) throws InterruptedException {
+        Pipeline pipeline = Pipeline.parse(chain);
+        for (Pipeline.Stage stage : pipeline.stages()) {
+            if (!canSplit(stage)) {
+                System.out.println("Error: " + stage.name() + " needs the whole image at once, so it can't be split into tiles.");
+                return false;
+            }
+        }
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (target.getWidth() != width || target.getHeight() != height) {
+            System.out.println("Error: The target image has to be the same size as the source.");
+            return false;
+        }
+
+        try {
+            startWorkers();
+        } catch (IOException e) {
+            System.out.println("Error: Couldn't start the workers: " + e);
+            close();
+            return false;
+        }
+
+        LinkedBlockingQueue<Rectangle> tiles = new LinkedBlockingQueue<Rectangle>();
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                tiles.add(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+            }
+        }
+        // tiles not yet in [target], whether queued or being made
+        AtomicInteger pending = new AtomicInteger(tiles.size());
+
+        // one thread per worker, each feeding its worker tiles until
+        // every tile is made. A feeder whose worker fails takes it out of
+        // [connections] straight away, so go through a copy.
+        ArrayList<Connection> running;
+        synchronized (this) {
+            running = new ArrayList<Connection>(connections);
+        }
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (Connection connection : running) {
+            Thread thread = new Thread(() -> feed(connection, pipeline, chain, source, target, tiles, pending));
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // a worker that fails puts its tile back, and the others keep
+        // going until it's made, so anything left over means there were
+        // no others left to take it
+        if (pending.get() > 0) {
+            System.out.println("Error: Workers failed, and " + pending.get() + " tiles weren't made.");
+            close();
+            return false;
+        }
+
+        return true;
+    }
+
+    // Send [connection]'s worker tiles to make until all [pending] tiles
+    // are made. Another worker may fail and put its tile back after the
+    // queue looked empty, so an empty queue alone isn't the end.
+    private void feed(Connection connection, Pipeline pipeline, String chain, Canvas source, Canvas target,
+            LinkedBlockingQueue<Rectangle> tiles, AtomicInteger pending) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Rectangle tile = null;
+
+        try {
+            connection.out.writeUTF(chain);
+            connection.out.writeInt(width);
+            connection.out.writeInt(height);
+
+            while (pending.get() > 0) {
+                tile = tiles.poll(10, TimeUnit.MILLISECONDS);
+                if (tile == null) {
+                    continue;
+                }
+
+                Rectangle window = windows(pipeline.stages(), tile, width, height)[0];
+                int[] pixels = new int[window.width * window.height];
+                source.get(window, pixels);
+
+                connection.out.writeBoolean(true);
+                writeRectangle(connection.out, tile);
+                writePixels(connection.out, pixels);
+                connection.out.flush();
+
+                int[] result = readPixels(connection.in, tile.width * tile.height);
+                synchronized (target) {
+                    target.set(tile, result);
+                }
+                tile = null;
+                pending.decrementAndGet();
+            }
+
+            connection.out.writeBoolean(false);
+            connection.out.flush();
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+            // Whatever went wrong, on either end, we may have stopped
+            // part way through a tile, so the worker can't be trusted to
+            // be where we think it is in the conversation. Hang up on it
+            // and let the others make the tile.
+            System.out.println("Error: Dropping a worker: " + e);
+            if (tile != null) {
+                tiles.add(tile);
+            }
+            synchronized (this) {
+                connections.remove(connection);
+            }
+            close(connection);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Start the worker JVMs and wait for each to connect, unless they're
+     * running already
+     */
+    private synchronized void startWorkers() throws IOException {
+        if (!connections.isEmpty()) {
+            return;
+        }
+
+        try (ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+
+            ArrayList<Process> processes = new ArrayList<Process>();
+            try {
+                for (int i = 0; i < workers; i ++) {
+                    processes.add(workerCommand(server.getLocalPort()).inheritIO().start());
+                }
+
+                connect(server, processes);
+            } catch (IOException e) {
+                // don't leave workers that never connected running
+                for (Process process : processes) {
+                    process.destroy();
+                }
+                throw e;
+            }
+        }
+    }
+
+    // Accept a connection from each of [processes]
+    private void connect(ServerSocket server, ArrayList<Process> processes) throws IOException {
+        for (int i = 0; i < processes.size(); i ++) {
+            Connection connection = new Connection();
+            connection.socket = server.accept();
+            connection.socket.setTcpNoDelay(true);
+            connection.in = new DataInputStream(new BufferedInputStream(connection.socket.getInputStream(), 1 << 16));
+            connection.out = new DataOutputStream(new BufferedOutputStream(connection.socket.getOutputStream(), 1 << 16));
+
+            // workers connect in whatever order they finish starting up,
+            // so each one says which process it is
+            long pid = connection.in.readLong();
+            for (Process process : processes) {
+                if (process.pid() == pid) {
+                    connection.process = process;
+                }
+            }
+            if (connection.process == null) {
+                connection.socket.close();
+                throw new IOException("Something other than a worker connected");
+            }
+
+            connections.add(connection);
+        }
+    }
+
+    // The same java, classpath and module options as this JVM
+    private static ProcessBuilder workerCommand(int port) {
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+
+        // the Vector API and our own settings; anything else (debuggers,
+        // Flight Recorder) shouldn't be copied into every worker
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("--add-modules") || argument.startsWith("-Dfilter.")) {
+                command.add(argument);
+            }
+        }
+
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("ShardedRunner");
+        command.add("--worker");
+        command.add(Integer.toString(port));
+        return new ProcessBuilder(command);
+    }
+
+    /**
+     * Stop the workers. The next run() starts new ones.
+     */
+    @Override
+    public synchronized void close() {
+        for (Connection connection : connections) {
+            close(connection);
+        }
+        connections.clear();
+    }
+
+    // Hang up on a worker, which makes it exit, and wait for it to go
+    private static void close(Connection connection) {
+        try {
+            if (connection.socket != null) {
+                connection.socket.close();
+            }
+            connection.process.waitFor();
+        } catch (IOException e) {
+            connection.process.destroy();
+        } catch (InterruptedException e) {
+            connection.process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A worker: connect to the coordinator on [port] and make the tiles
+     * it asks for until it hangs up
+     */
+    static void work(int port) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+            out.writeLong(ProcessHandle.current().pid());
+            out.flush();
+
+            while (true) {
+                String chain;
+                try {
+                    chain = in.readUTF();
+                } catch (EOFException e) {
+                    // the coordinator is done with us
+                    return;
+                }
+
+                Pipeline pipeline = Pipeline.parse(chain);
+                int width = in.readInt();
+                int height = in.readInt();
+
+                while (in.readBoolean()) {
+                    Rectangle tile = readRectangle(in);
+                    Rectangle[] windows = windows(pipeline.stages(), tile, width, height);
+                    int[] pixels = readPixels(in, windows[0].width * windows[0].height);
+
+                    writePixels(out, runTile(pipeline, pixels, windows, width, height));
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that running each of VERIFY_CHAINS on the image at [path]
+     * with [workers] workers gives exactly the same pixels as running it
+     * in this JVM. Small tiles are used, so most pixels are near the
+     * edge of some tile.
+     */
+    static boolean verify(String path, int workers) throws InterruptedException {
+        ImageManager source = new ImageManager(path);
+        if (source.getWidth() == 0) {
+            return false;
+        }
+
+        boolean allMatch = true;
+
+        try (ShardedRunner runner = new ShardedRunner(workers, 96)) {
+            for (String chain : VERIFY_CHAINS) {
+                ImageManager expected = source.clone("expected");
+                Pipeline.parse(chain).run(expected);
+
+                ImageManager sharded = new ImageManager("sharded", source.getWidth(), source.getHeight());
+                if (!runner.run(source, sharded, chain)) {
+                    allMatch = false;
+                    continue;
+                }
+
+                int[] want = expected.getPixels();
+                int[] got = sharded.getPixels();
+                int wrong = 0;
+                int first = -1;
+                for (int i = 0; i < want.length; i ++) {
+                    if (want[i] != got[i]) {
+                        wrong ++;
+                        first = first < 0 ? i : first;
+                    }
+                }
+
+                if (wrong == 0) {
+                    System.out.println(String.format("ok        %s", chain));
+                } else {
+                    allMatch = false;
+                    System.out.println(String.format("MISMATCH  %s: %d pixels differ, the first at (%d, %d)",
+                            chain, wrong, first % source.getWidth(), first / source.getWidth()));
+                }
+            }
+        }
+
+        System.out.println(allMatch
+                ? "Every pixel matched on " + workers + " workers"
+                : "Sharded output doesn't match");
+        return allMatch;
+    }
+
+    /**
+     * Whether [stage] can run on a window of the image
+     */
+    static boolean canSplit(Pipeline.Stage stage) {
+        if (stage instanceof Pipeline.PointStage || stage instanceof Pipeline.WarpStage) {
+            return true;
+        }
+
+        if (stage instanceof Pipeline.GatherStage) {
+            GatherOp op = ((Pipeline.GatherStage) stage).op();
+            return op instanceof Kernel || op instanceof BoxBlur || op instanceof Warp;
+        }
+
+        return false;
+    }
+
+    /**
+     * Walk backwards through [stages] from [tile] of a width x height
+     * image, to find the window each step needs. windows[i] is the
+     * window going into step i, and the last one is the tile itself.
+     */
+    static Rectangle[] windows(List<Pipeline.Stage> stages, Rectangle tile, int width, int height) {
+        Rectangle[] windows = new Rectangle[stages.size() + 1];
+        windows[stages.size()] = tile;
+
+        for (int i = stages.size() - 1; i >= 0; i --) {
+            Rectangle after = windows[i + 1];
+            Warp warp = warp(stages.get(i));
+
+            if (after.isEmpty()) {
+                windows[i] = new Rectangle(0, 0, 0, 0);
+            } else if (warp != null) {
+                windows[i] = warp.sourceBounds(after, width, height);
+            } else if (stages.get(i) instanceof Pipeline.GatherStage) {
+                windows[i] = halo(((Pipeline.GatherStage) stages.get(i)).op(), after, width, height);
+            } else {
+                windows[i] = after;
+            }
+        }
+
+        return windows;
+    }
+
+    // [region] plus the neighbours a Kernel or BoxBlur reads around it
+    private static Rectangle halo(GatherOp op, Rectangle region, int width, int height) {
+        int reachX;
+        int reachY;
+        EdgePolicy edges;
+        if (op instanceof Kernel) {
+            reachX = ((Kernel) op).getWidth() / 2;
+            reachY = ((Kernel) op).getHeight() / 2;
+            edges = ((Kernel) op).getEdges();
+        } else {
+            reachX = ((BoxBlur) op).getRadius();
+            reachY = reachX;
+            edges = ((BoxBlur) op).getEdges();
+        }
+
+        int left = Math.max(0, region.x - reachX);
+        int top = Math.max(0, region.y - reachY);
+        int right = Math.min(width, region.x + region.width + reachX);
+        int bottom = Math.min(height, region.y + region.height + reachY);
+
+        // wrapping past an edge reads from the far side of the image, so
+        // then the window has to go all the way across
+        if (edges == EdgePolicy.WRAP && (region.x - reachX < 0 || region.x + region.width + reachX > width)) {
+            left = 0;
+            right = width;
+        }
+        if (edges == EdgePolicy.WRAP && (region.y - reachY < 0 || region.y + region.height + reachY > height)) {
+            top = 0;
+            bottom = height;
+        }
+
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Run the pipeline on [pixels], which hold windows[0] of a width x
+     * height image, and return the pixels of the tile (the last window)
+     */
+    static int[] runTile(Pipeline pipeline, int[] pixels, Rectangle[] windows, int width, int height) {
+        List<Pipeline.Stage> stages = pipeline.stages();
+
+        for (int i = 0; i < stages.size(); i ++) {
+            Pipeline.Stage stage = stages.get(i);
+            Warp warp = warp(stage);
+
+            if (warp != null && !(stage instanceof Pipeline.WarpStage && warp.isIdentity())) {
+                int[] next = new int[windows[i + 1].width * windows[i + 1].height];
+                warp.resample(pixels, windows[i], next, windows[i + 1], windows[i + 1], width, height);
+                pixels = next;
+            } else if (stage instanceof Pipeline.PointStage) {
+                PointOp op = ((Pipeline.PointStage) stage).fused();
+                for (int j = 0; j < pixels.length; j ++) {
+                    pixels[j] = op.filter(pixels[j]);
+                }
+            } else if (stage instanceof Pipeline.GatherStage && !windows[i].isEmpty()) {
+                ImageManager window = new ImageManager("window", windows[i].width, windows[i].height);
+                System.arraycopy(pixels, 0, window.getPixels(), 0, pixels.length);
+                pipeline.run(stage, window);
+                pixels = crop(window.getPixels(), windows[i], windows[i + 1]);
+            } else {
+                pixels = crop(pixels, windows[i], windows[i + 1]);
+            }
+        }
+
+        return pixels;
+    }
+
+    // The Warp [stage] does, or null if it isn't a warp
+    private static Warp warp(Pipeline.Stage stage) {
+        if (stage instanceof Pipeline.WarpStage) {
+            return ((Pipeline.WarpStage) stage).warp();
+        }
+        if (stage instanceof Pipeline.GatherStage && ((Pipeline.GatherStage) stage).op() instanceof Warp) {
+            return (Warp) ((Pipeline.GatherStage) stage).op();
+        }
+        return null;
+    }
+
+    // Copy the [inner] part out of [pixels], which hold [outer]
+    private static int[] crop(int[] pixels, Rectangle outer, Rectangle inner) {
+        if (outer.equals(inner)) {
+            return pixels;
+        }
+
+        int[] cropped = new int[inner.width * inner.height];
+        for (int y = 0; y < inner.height; y ++) {
+            System.arraycopy(
+                pixels, (inner.y - outer.y + y) * outer.width + inner.x - outer.x,
+                cropped, y * inner.width,
+                inner.width
+            );
+        }
+        return cropped;
+    }
+
+    private static void writeRectangle(DataOutputStream out, Rectangle rectangle) throws IOException {
+        out.writeInt(rectangle.x);
+        out.writeInt(rectangle.y);
+        out.writeInt(rectangle.width);
+        out.writeInt(rectangle.height);
+    }
+
+    private static Rectangle readRectangle(DataInputStream in) throws IOException {
+        return new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    private static void writePixels(DataOutputStream out, int[] pixels) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * pixels.length);
+        bytes.asIntBuffer().put(pixels);
+        out.write(bytes.array());
+    }
+
+    private static int[] readPixels(DataInputStream in, int count) throws IOException {
+        byte[] bytes = new byte[4 * count];
+        in.readFully(bytes);
+
+        int[] pixels = new int[count];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+        return pixels;
+    }
+
+    private static Canvas canvas(ImageManager image) {
+        // fetched once up front, since getPixels() on a shared image
+        // makes a copy, which mustn't happen on several threads at once
+        int[] imagePixels = image.getPixels();
+
+        return new Canvas() {
+            public int getWidth() {
+                return image.getWidth();
+            }
+
+            public int getHeight() {
+                return image.getHeight();
+            }
+
+            public void get(Rectangle region, int[] pixels) {
+                for (int y = 0; y < region.height; y ++) {
+                    System.arraycopy(
+                        imagePixels, (region.y + y) * image.getWidth() + region.x,
+                        pixels, y * region.width,
+                        region.width
+                    );
+                }
+            }
+
+            public void set(Rectangle region, int[] pixels) {
+                for (int y = 0; y < region.height; y ++) {
+                    System.arraycopy(
+                        pixels, y * region.width,
+                        imagePixels, (region.y + y) * image.getWidth() + region.x,
+                        region.width
+                    );
+                }
+            }
+        };
+    }
+
+    private static Canvas canvas(LargeImage image) {
+        return new Canvas() {
+            public int getWidth() {
+                return image.getWidth();
+            }
+
+            public int getHeight() {
+                return image.getHeight();
+            }
+
+            public void get(Rectangle region, int[] pixels) {
+                image.getRegion(region, pixels);
+            }
+
+            public void set(Rectangle region, int[] pixels) {
+                image.setRegion(region, pixels);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * SIMD versions of the simplest color filters, when we can get them.
+ *
+ * greyscale, contrasty and the redder / greener / bluer boosts do the
+ * exact same math to every pixel, which is what SIMD
+ * (single instruction, multiple data) CPU instructions are for: they
+ * work on 4, 8 or 16 pixels with one instruction. Java gives us those
+ * through the Vector API, in the jdk.incubator.vector module.
+ *
+ * That module isn't part of every JDK, and has to be turned on with
+ * --add-modules, so the vector code lives in vector/VectorKernels.java
+ * and is compiled separately (see run.sh). If it's missing, or the JVM
+ * wasn't started with the module, VECTOR is null and Filter sticks to
+ * its plain loops. Set -Dfilter.simd=false to turn it off on purpose.
+ *
+ * saturate isn't here: it works in doubles, and on Java 17 the Vector
+ * API can't turn ints into doubles without making garbage, which ends up
+ * slower than the plain loop.
+ *
+ * Each kernel gives exactly the same pixels as the plain loop it stands
+ * in for, and works on pixels[from] up to (not including) pixels[to].
+ * The byte[] versions work on one plane of a PlanarImage, which fits
+ * four times as many pixels in each vector.
+ */
+class Simd {
+
+    interface Kernels {
+        void greyscale(int[] pixels, int from, int to);
+
+        void contrasty(int[] pixels, int from, int to);
+
+        /**
+         * Add to each channel, stopping at 255
+         */
+        void addClamped(int[] pixels, int from, int to, int red, int green, int blue);
+
+        /**
+         * contrasty for one plane of a PlanarImage
+         */
+        void contrasty(byte[] plane, int from, int to);
+
+        /**
+         * Add [amount] to every value in one plane of a PlanarImage,
+         * stopping at 255
+         */
+        void addClamped(byte[] plane, int from, int to, int amount);
+    }
+
+    /**
+     * The vector kernels, or null if they can't be used here
+     */
+    static final Kernels VECTOR = load();
+
+    private static Kernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("filter.simd", "true"))) {
+            return null;
+        }
+
+        try {
+            return (Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not compiled, or jdk.incubator.vector isn't available
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Remembers what a Pipeline's steps turned an image into, so running a
+ * pipeline that starts with the same steps on the same picture can pick
+ * up where the last one left off.
+ *
+ * When tuning a filter chain, you usually run it over and over with only
+ * the last setting changed: rotate:25,scale:1.3,saturate:2, then
+ * saturate:3, then saturate:4... Every run redoes the rotate and scale
+ * even though they come out the same each time. With a StageCache, the
+ * image after each step is saved under a key made of:
+ *
+ *  - a fingerprint of the input picture's pixels
+ *  - plus the key of every step so far (see Pipeline.Stage.key), which
+ *    includes its settings, like "saturate:3.0"
+ *
+ * so the next run finds the image after rotate and scale, and only runs
+ * saturate. Running exactly the same chain again finds the finished
+ * image, and only has to copy it.
+ *
+ * Steps without a key (custom lambdas and stages) can't be looked up, so
+ * they, and every step after them, always run.
+ *
+ * Saved images take up memory, so the cache holds at most maxBytes worth
+ * of pixels, throwing out the least recently used ones (like ImageCache).
+ *
+ * Usage: java StageCache <image> <chain> <last step> <from> <to> <count>
+ *  e.g. java StageCache images/input.jpg rotate:25,scale:1.3 saturate 1 5 9
+ * runs the chain with the last step's setting swept from 1 to 5, and
+ * prints how long each run took.
+ */
+class StageCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * The image after some steps
+     */
+    private static class Entry {
+
+        int width;
+        int height;
+        int[] pixels;
+
+        long bytes() {
+            return 4L * pixels.length;
+        }
+
+    }
+
+    private long maxBytes;
+    private long bytes;
+
+    // with accessOrder set to true, iterating a LinkedHashMap goes from
+    // the least to the most recently used entry
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long reused;
+    private long ran;
+    private long evictions;
+
+    /**
+     * @param maxBytes - how many bytes of pixels to keep, at most
+     */
+    public StageCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Cache size can't be negative");
+        }
+
+        this.maxBytes = maxBytes;
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 6) {
+            System.out.println("Usage: java StageCache <image> <chain> <last step> <from> <to> <count>");
+            System.out.println("  e.g. java StageCache images/input.jpg rotate:25,scale:1.3 saturate 1 5 9");
+            return;
+        }
+
+        ImageManager source = new ImageManager(args[0]);
+        double from = Double.parseDouble(args[3]);
+        double to = Double.parseDouble(args[4]);
+        int count = Integer.parseInt(args[5]);
+
+        StageCache cache = new StageCache(DEFAULT_MAX_BYTES);
+
+        for (int i = 0; i < count; i ++) {
+            double setting = count == 1 ? from : from + (to - from) * i / (count - 1);
+            String chain = args[1] + "," + args[2] + ":" + setting;
+
+            long start = System.nanoTime();
+            Pipeline.parse(chain).run(source, cache, "sweep.jpg");
+            System.out.println(String.format("%-40s %8.1fms", chain, (System.nanoTime() - start) / 1e6));
+        }
+
+        System.out.println(cache);
+    }
+
+    /**
+     * Run [pipeline] on a copy of [source] for [path], reusing what we
+     * can (see Pipeline.run(ImageManager, StageCache, String)). [source]
+     * itself is never changed.
+     */
+    public ImageManager run(Pipeline pipeline, ImageManager source, String path) {
+        List<Pipeline.Stage> stages = pipeline.stages();
+
+        // keys[i] names the image after steps 0..i, or is null from the
+        // first step without a key on
+        String[] keys = new String[stages.size()];
+        String prefix = source.getWidth() + " x " + source.getHeight() + " #" + Long.toHexString(fingerprint(source));
+        for (int i = 0; i < keys.length; i ++) {
+            String key = stages.get(i).key();
+            prefix = prefix == null || key == null ? null : prefix + " | " + key;
+            keys[i] = prefix;
+        }
+
+        // start from the furthest step we have saved, if any
+        int done = 0;
+        Entry start = null;
+        synchronized (this) {
+            for (int i = keys.length - 1; i >= 0; i --) {
+                Entry entry = keys[i] == null ? null : entries.get(keys[i]);
+                if (entry != null) {
+                    start = entry;
+                    done = i + 1;
+                    break;
+                }
+            }
+            reused += done;
+            ran += keys.length - done;
+        }
+
+        ImageManager image;
+        if (start == null) {
+            image = source.clone(path);
+        } else {
+            image = new ImageManager(path, start.width, start.height);
+            System.arraycopy(start.pixels, 0, image.getPixels(), 0, start.pixels.length);
+        }
+
+        for (int i = done; i < keys.length; i ++) {
+            pipeline.run(stages.get(i), image);
+
+            if (keys[i] != null) {
+                save(keys[i], image);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Forget every saved image
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * How many steps were skipped because their result was saved
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * How many steps had to run
+     */
+    public synchronized long getRan() {
+        return ran;
+    }
+
+    /**
+     * How many saved images were thrown out to make room for others
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * How many bytes of pixels are saved right now
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StageCache: " + entries.size() + " images, "
+                + String.format("%.1f", bytes / 1e6) + " of "
+                + String.format("%.1f", maxBytes / 1e6) + " MB, "
+                + reused + " steps reused, " + ran + " ran, " + evictions + " evictions";
+    }
+
+    /**
+     * A 64 bit hash of the image's pixels. Two different pictures of the
+     * same size are astronomically unlikely to share one, and working it
+     * out is a single pass over the pixels, far less than most steps.
+     */
+    static long fingerprint(ImageManager image) {
+        int[] pixels = image.getPixels();
+
+        // FNV-1a, a whole pixel at a time
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pixels.length; i ++) {
+            hash = (hash ^ pixels[i]) * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    // Save a copy of the image under [key]
+    private void save(String key, ImageManager image) {
+        Entry entry = new Entry();
+        entry.width = image.getWidth();
+        entry.height = image.getHeight();
+
+        if (4L * entry.width * entry.height > maxBytes) {
+            // bigger than the whole cache, so don't push everything out for it
+            return;
+        }
+
+        entry.pixels = image.getPixels().clone();
+
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                bytes -= old.bytes();
+            }
+
+            bytes += entry.bytes();
+            evictUntil(maxBytes);
+        }
+    }
+
+    // Throw out least recently used images until at most [limit] bytes are left
+    private void evictUntil(long limit) {
+        Iterator<Entry> oldest = entries.values().iterator();
+
+        while (bytes > limit && oldest.hasNext()) {
+            bytes -= oldest.next().bytes();
+            oldest.remove();
+            evictions ++;
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for one filter step, sent by Metrics.
+ *
+ * Flight Recorder keeps a timeline of what the JVM was doing (garbage
+ * collections, threads waiting on locks, ...), and custom events like
+ * this one put our own steps on it. Record with
+ *
+ *   java -Dfilter.metrics=true -XX:StartFlightRecording=filename=run.jfr ...
+ *
+ * and open run.jfr in JDK Mission Control, or print the events with
+ * "jfr print --events imagefilter.Stage run.jfr". Events cost next to
+ * nothing when no recording is running.
+ */
+@Name("imagefilter.Stage")
+@Label("Image Filter Stage")
+@Category("Image Filter")
+@Description("One filter, read, write or clone of an image")
+class StageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+
+}
@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals for one measured step, kept by Metrics. It's also the
+ * JMX bean for that step (see StageStatsMXBean).
+ *
+ * Many threads may finish the same step at once, so the totals are
+ * LongAdders, which let each thread add to its own counter instead of
+ * fighting over one.
+ */
+class StageStats implements StageStatsMXBean {
+
+    private String name;
+
+    private LongAdder calls = new LongAdder();
+    private LongAdder nanos = new LongAdder();
+    private LongAdder pixels = new LongAdder();
+    private LongAdder allocatedBytes = new LongAdder();
+
+    StageStats(String name) {
+        this.name = name;
+    }
+
+    void record(long nanos, long pixels, long allocatedBytes) {
+        this.calls.increment();
+        this.nanos.add(nanos);
+        this.pixels.add(pixels);
+        this.allocatedBytes.add(allocatedBytes);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public double getTotalMillis() {
+        return nanos.sum() / 1e6;
+    }
+
+    public double getMegapixels() {
+        return pixels.sum() / 1e6;
+    }
+
+    public double getMegapixelsPerSecond() {
+        long totalNanos = nanos.sum();
+        return totalNanos == 0 ? 0 : pixels.sum() / 1e6 / (totalNanos / 1e9);
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    public void reset() {
+        calls.reset();
+        nanos.reset();
+        pixels.reset();
+        allocatedBytes.reset();
+    }
+
+}
@@ -0,0 +1,28 @@
+/**
+ * What JConsole, VisualVM and other JMX tools can see of a StageStats.
+ *
+ * JMX finds a bean's attributes by looking for an interface named after
+ * the class plus "MXBean", and treating its getters as attributes and
+ * other methods as operations you can call. It has to be public for
+ * JMX to be allowed to call it.
+ */
+public interface StageStatsMXBean {
+
+    String getName();
+
+    long getCalls();
+
+    double getTotalMillis();
+
+    double getMegapixels();
+
+    double getMegapixelsPerSecond();
+
+    long getAllocatedBytes();
+
+    /**
+     * Start counting from zero again
+     */
+    void reset();
+
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Runs a Pipeline over an image that's too big to fit in memory, by
+ * working through it in horizontal strips.
+ *
+ * ImageManager reads the whole file into one big array. A 30000 x 30000
+ * scan would need 3.6GB for that, so instead we only ever decode the
+ * part of the file that the current strip of output needs, using
+ * ImageReadParam.setSourceRegion, filter it, and hand the finished
+ * strip to the file before moving on to the next one.
+ *
+ * Color filters only need the same strip of the source. For rotations,
+ * scales and translations we work backwards through the pipeline to
+ * find the window of the source that lands in this strip, and only
+ * decode that window.
+ *
+ * ImageIO can't write a JPEG a piece at a time, so the output is an
+ * uncompressed TIFF, which it can.
+ *
+ * JPEG and PNG files have to be decoded from the top, so reading a
+ * window near the bottom still decodes every row above it (without
+ * keeping them). For those formats we decode a band of up to
+ * BAND_PIXELS at a time and cut each strip's window out of it, so the
+ * file is decoded once per band instead of once per strip. That's
+ * still one pass over the file per band, so a warning says how many
+ * passes it'll take; for really big images, convert to TIFF first.
+ * Formats like TIFF that can jump straight to a row just decode each
+ * window.
+ *
+ * Rotations and scales whose EdgePolicy wraps or mirrors can read
+ * from anywhere in the image, which would mean decoding the whole
+ * image for every strip, so they aren't allowed here.
+ */
+class StripProcessor {
+
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+    // how many pixels to decode at once from files that have to be
+    // decoded from the top
+    public static final int BAND_PIXELS = 1 << 23;
+
+    private int stripHeight;
+
+    public StripProcessor() {
+        this(DEFAULT_STRIP_HEIGHT);
+    }
+
+    /**
+     * @param stripHeight - how many rows of output to make at a time.
+     *  Memory use grows with this, and with how far the pipeline's
+     *  geometric steps move pixels around.
+     */
+    public StripProcessor(int stripHeight) {
+        if (stripHeight < 1) {
+            throw new IllegalArgumentException("Strip height must be positive, got " + stripHeight);
+        }
+
+        this.stripHeight = stripHeight;
+    }
+
+    /**
+     * Run [pipeline] over the image at [inputPath] and save the result
+     * as a TIFF at [outputPath]. The pipeline may only contain color
+     * filters, rotations, scales and translations, and the geometric
+     * steps' EdgePolicy can't be WRAP or MIRROR.
+     *
+     * @return whether it worked; if not, the error is printed
+     */
+    public boolean process(String inputPath, String outputPath, Pipeline pipeline) {
+        List<Pipeline.Stage> stages = pipeline.stages();
+        for (Pipeline.Stage stage : stages) {
+            if (!(stage instanceof Pipeline.PointStage) && !(stage instanceof Pipeline.WarpStage)) {
+                System.out.println("Error: only color filters and rotate / scale / translate can run in strips.");
+                return false;
+            }
+            if (stage instanceof Pipeline.WarpStage) {
+                EdgePolicy edges = ((Pipeline.WarpStage) stage).warp().getEdges();
+                if (edges == EdgePolicy.WRAP || edges == EdgePolicy.MIRROR) {
+                    System.out.println("Error: " + edges + " edges can read from anywhere in the image, so they can't run in strips."
+                            + " Use CONSTANT or CLAMP, or run the pipeline on a whole ImageManager.");
+                    return false;
+                }
+            }
+        }
+
+        File outputFile = new File(outputPath);
+        outputFile.delete();
+
+        try (
+            ImageInputStream input = ImageIO.createImageInputStream(new File(inputPath));
+            ImageOutputStream output = ImageIO.createImageOutputStream(outputFile)
+        ) {
+            if (input == null) {
+                System.out.println("Error: Couldn't open " + inputPath);
+                return false;
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                System.out.println("Error: Don't know how to read " + inputPath);
+                return false;
+            }
+
+            ImageReader reader = readers.next();
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+            try {
+                reader.setInput(input, true);
+                writer.setOutput(output);
+                process(reader, writer, stages);
+            } finally {
+                reader.dispose();
+                writer.dispose();
+            }
+
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error: " + e);
+            return false;
+        }
+    }
+
+    private void process(ImageReader reader, ImageWriter writer, List<Pipeline.Stage> stages) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+
+        writer.prepareWriteEmpty(
+            null,
+            ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB),
+            width,
+            height,
+            null,
+            null,
+            null
+        );
+        writer.prepareReplacePixels(0, new Rectangle(0, 0, width, height));
+
+        // for formats that decode from the top, rows [bandTop, bandTop +
+        // band.length / width) of the image, all the way across
+        boolean sequential = !reader.isRandomAccessEasy(0);
+        int bandRows = Math.max(stripHeight, BAND_PIXELS / width);
+        int[] band = null;
+        int bandTop = 0;
+
+        if (sequential && height > bandRows) {
+            System.out.println("Warning: " + reader.getFormatName() + " files are decoded from the top, so this reads the file"
+                    + " about " + ((height + bandRows - 1) / bandRows) + " times. Convert it to TIFF first to read it once.");
+        }
+
+        BufferedImage strip = null;
+
+        for (int top = 0; top < height; top += stripHeight) {
+            Rectangle stripBounds = new Rectangle(0, top, width, Math.min(stripHeight, height - top));
+
+            // Walk backwards to find the part of the image each step needs.
+            // bounds[i] is the window going into step i, and the last
+            // one is the strip itself.
+            Rectangle[] bounds = new Rectangle[stages.size() + 1];
+            bounds[stages.size()] = stripBounds;
+            for (int i = stages.size() - 1; i >= 0; i --) {
+                Pipeline.Stage stage = stages.get(i);
+                if (stage instanceof Pipeline.WarpStage) {
+                    bounds[i] = ((Pipeline.WarpStage) stage).warp().sourceBounds(bounds[i + 1], width, height);
+                } else {
+                    bounds[i] = bounds[i + 1];
+                }
+            }
+
+            // Then walk forwards, running each step on just its window
+            int[] pixels;
+            if (sequential) {
+                Rectangle window = bounds[0];
+                pixels = new int[window.width * window.height];
+                // windows only move down the image as the strips do, so
+                // when one runs off the end of the band, start a new band
+                // at its top
+                if (pixels.length > 0 && (
+                    band == null || window.y < bandTop || window.y + window.height > bandTop + band.length / width
+                )) {
+                    bandTop = window.y;
+                    int rows = Math.min(height - bandTop, Math.max(bandRows, window.height));
+                    band = read(reader, new Rectangle(0, bandTop, width, rows));
+                }
+                for (int y = 0; y < window.height; y ++) {
+                    System.arraycopy(band, (window.y - bandTop + y) * width + window.x, pixels, y * window.width, window.width);
+                }
+            } else {
+                pixels = read(reader, bounds[0]);
+            }
+            for (int i = 0; i < stages.size(); i ++) {
+                Pipeline.Stage stage = stages.get(i);
+                if (stage instanceof Pipeline.WarpStage) {
+                    int[] next = new int[bounds[i + 1].width * bounds[i + 1].height];
+                    ((Pipeline.WarpStage) stage).warp().resample(
+                        pixels, bounds[i],
+                        next, bounds[i + 1],
+                        bounds[i + 1], width, height
+                    );
+                    pixels = next;
+                } else {
+                    PointOp op = ((Pipeline.PointStage) stage).fused();
+                    for (int j = 0; j < pixels.length; j ++) {
+                        pixels[j] = op.filter(pixels[j]);
+                    }
+                }
+            }
+
+            if (strip == null || strip.getHeight() != stripBounds.height) {
+                strip = new BufferedImage(width, stripBounds.height, BufferedImage.TYPE_INT_RGB);
+            }
+            int[] stripPixels = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+            System.arraycopy(pixels, 0, stripPixels, 0, stripPixels.length);
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setDestinationOffset(new Point(0, top));
+            writer.replacePixels(strip.getRaster(), param);
+        }
+
+        writer.endReplacePixels();
+        writer.endWriteEmpty();
+    }
+
+    // Decode just the [bounds] window of the image as packed 0xRRGGBB pixels
+    private static int[] read(ImageReader reader, Rectangle bounds) throws IOException {
+        int[] pixels = new int[bounds.width * bounds.height];
+        if (pixels.length == 0) {
+            return pixels;
+        }
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(bounds);
+        BufferedImage window = reader.read(0, param);
+
+        window.getRGB(0, 0, bounds.width, bounds.height, pixels, 0, bounds.width);
+        for (int i = 0; i < pixels.length; i ++) {
+            pixels[i] &= 0xFFFFFF;
+        }
+
+        return pixels;
+    }
+
+}
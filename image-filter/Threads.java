@@ -0,0 +1,63 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Helpers for making threads that spend most of their time waiting on
+ * files or the network.
+ *
+ * Java 21 added virtual threads, which are cheap enough to have one per
+ * task. We want to use them when they're there, but still run on older
+ * Java versions, so we look them up by name at runtime and fall back to
+ * ordinary threads when they're missing.
+ */
+class Threads {
+
+    /**
+     * Make threads for blocking I/O work: virtual threads if this Java
+     * has them, otherwise ordinary daemon threads.
+     */
+    public static ThreadFactory ioThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory")
+                .invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    /**
+     * An executor that starts a new I/O thread for every task
+     */
+    public static ExecutorService ioExecutor() {
+        ThreadFactory factory = ioThreadFactory();
+
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            // before Java 21, reusing idle threads is the next best thing
+            return Executors.newCachedThreadPool(factory);
+        }
+    }
+
+    /**
+     * True if ioThreadFactory() hands out virtual threads
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+}
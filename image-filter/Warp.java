@@ -0,0 +1,466 @@
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+
+/**
+ * Any mix of rotations, scales and translations, squashed into a
+ * single affine transform so the image only gets resampled once.
+ *
+ * Running Filter.rotate and then Filter.scale reads every pixel twice
+ * and loses a little detail each time. Both of those (and translate)
+ * are just 2 x 3 matrices though, and two matrices in a row multiply
+ * into one matrix, so a Warp keeps the product and moves each pixel
+ * straight from where it started to where it ends up.
+ *
+ * Like Filter, rotations and scales are about the center of the image,
+ * and a Warp works backwards: for each target pixel it works out where
+ * in the source to read from. Reading between source pixels is done by
+ * the chosen Interpolation, and reading past the edges of the image by
+ * the chosen EdgePolicy (black by default, like Filter).
+ */
+class Warp implements GatherOp {
+
+    /**
+     * How to pick a color when the source position falls between pixels
+     */
+    enum Interpolation {
+        // take the closest pixel; fast but blocky. Filter.rotate, scale
+        // and translate cut off the fraction instead, so they don't
+        // quite match
+        NEAREST,
+        // blend the 2 x 2 pixels around the position
+        BILINEAR,
+        // blend the 4 x 4 pixels around the position along a smooth curve
+        BICUBIC
+    }
+
+    // maps target positions to source positions, both measured from the
+    // center of the image
+    private AffineTransform inverse = new AffineTransform();
+
+    private Interpolation interpolation;
+
+    private EdgePolicy edges;
+
+    public Warp() {
+        this(Interpolation.NEAREST);
+    }
+
+    public Warp(Interpolation interpolation) {
+        this(interpolation, EdgePolicy.CONSTANT);
+    }
+
+    /**
+     * A Warp that reads past the edges of the image with [edges], rather
+     * than the black of EdgePolicy.CONSTANT
+     */
+    public Warp(Interpolation interpolation, EdgePolicy edges) {
+        this.interpolation = interpolation;
+        this.edges = edges;
+    }
+
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    public EdgePolicy getEdges() {
+        return edges;
+    }
+
+    /**
+     * Rotate clockwise by [degrees] degrees, about the center point
+     */
+    public Warp rotate(double degrees) {
+        double radians = -1.0 * degrees * Math.PI / 180;
+        return then(AffineTransform.getRotateInstance(radians));
+    }
+
+    /**
+     * Scale by a given factor around the center
+     */
+    public Warp scale(double factor) {
+        return then(AffineTransform.getScaleInstance(1 / factor, 1 / factor));
+    }
+
+    /**
+     * Move by the given number of pixels
+     */
+    public Warp translate(double horiz, double vert) {
+        return then(AffineTransform.getTranslateInstance(-horiz, -vert));
+    }
+
+    /**
+     * Add everything [next] does after everything this Warp already does
+     */
+    public Warp then(Warp next) {
+        return then(next.inverse);
+    }
+
+    /**
+     * True if this Warp leaves every pixel where it is
+     */
+    public boolean isIdentity() {
+        return inverse.isIdentity();
+    }
+
+    // A step that runs after the ones we have reads its source from our
+    // target, so its inverse goes on the target side of ours.
+    private Warp then(AffineTransform stepInverse) {
+        inverse.concatenate(stepInverse);
+        return this;
+    }
+
+    /**
+     * The interpolation, edge policy and all six numbers of the
+     * transform, so Warps that print the same do the same
+     */
+    @Override
+    public String toString() {
+        double[] matrix = new double[6];
+        inverse.getMatrix(matrix);
+        return "Warp(" + interpolation + ", " + edges + ")" + Arrays.toString(matrix);
+    }
+
+    /**
+     * Resample the whole image through this Warp, on the calling thread
+     */
+    public void apply(ImageManager image) {
+        TileExecutor.sequential().gather(image, this);
+    }
+
+    public void gather(int[] source, int[] target, int width, int height, int x0, int y0, int x1, int y1) {
+        Rectangle whole = new Rectangle(0, 0, width, height);
+        resample(source, whole, target, whole, new Rectangle(x0, y0, x1 - x0, y1 - y0), width, height);
+    }
+
+    /**
+     * Work out which source pixels are needed to fill in the [target]
+     * rectangle of a canvasWidth x canvasHeight image. The answer is
+     * trimmed to the image, so it may be empty. If the target reads past
+     * the edges and the EdgePolicy wraps or mirrors them back, it could
+     * need pixels from anywhere, so then the answer is the whole image.
+     */
+    public Rectangle sourceBounds(Rectangle target, int canvasWidth, int canvasHeight) {
+        double ww = canvasWidth / 2;
+        double hh = canvasHeight / 2;
+
+        double[] corners = {
+            target.x - ww, target.y - hh,
+            target.x + target.width - ww, target.y - hh,
+            target.x - ww, target.y + target.height - hh,
+            target.x + target.width - ww, target.y + target.height - hh
+        };
+        inverse.transform(corners, 0, corners, 0, 4);
+
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < 8; i += 2) {
+            minX = Math.min(minX, corners[i] + ww);
+            maxX = Math.max(maxX, corners[i] + ww);
+            minY = Math.min(minY, corners[i + 1] + hh);
+            maxY = Math.max(maxY, corners[i + 1] + hh);
+        }
+
+        // bicubic reads up to 2 pixels past the position on either side
+        int left = (int) Math.floor(minX) - 2;
+        int top = (int) Math.floor(minY) - 2;
+        int right = (int) Math.ceil(maxX) + 3;
+        int bottom = (int) Math.ceil(maxY) + 3;
+
+        Rectangle canvas = new Rectangle(0, 0, canvasWidth, canvasHeight);
+        Rectangle bounds = new Rectangle(left, top, right - left, bottom - top);
+        if (edges != EdgePolicy.CONSTANT && !canvas.contains(bounds)) {
+            return canvas;
+        }
+
+        bounds = bounds.intersection(canvas);
+        if (bounds.isEmpty()) {
+            return new Rectangle(0, 0, 0, 0);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Fill in the [region] of a canvasWidth x canvasHeight image, when
+     * we only have a window of it in memory on each side: [source] holds
+     * the pixels inside [sourceBounds] and [target] the pixels inside
+     * [targetBounds], each laid out row by row. [sourceBounds] should
+     * cover sourceBounds(region); anything outside of it reads as black.
+     *
+     * Along each row the source position moves in a straight line, so we
+     * can work out exactly which stretch of the row reads only from
+     * inside the window. That stretch is read with no checks at all, and
+     * only the pixels before and after it go through the EdgePolicy.
+     */
+    public void resample(
+        int[] source, Rectangle sourceBounds,
+        int[] target, Rectangle targetBounds,
+        Rectangle region, int canvasWidth, int canvasHeight
+    ) {
+        double ww = canvasWidth / 2;
+        double hh = canvasHeight / 2;
+        int sourceWidth = sourceBounds.width;
+        int sourceHeight = sourceBounds.height;
+
+        // how far the source position moves for each step right along a row
+        double stepX = inverse.getScaleX();
+        double stepY = inverse.getShearY();
+
+        // how far inside the window a source position has to be for
+        // everything the interpolation reads around it to be inside too
+        // (bicubic reads 1 pixel before and 2 after, bilinear 1 after, and
+        // nearest rounds), with a little to spare for rounding in the
+        // running sums below
+        double low = 0.001;
+        double high = 1.001;
+        if (interpolation == Interpolation.BILINEAR) {
+            high = 2.001;
+        } else if (interpolation == Interpolation.BICUBIC) {
+            low = 1.001;
+            high = 3.001;
+        }
+
+        // the pixels around a position near the edge, 4 to a row
+        int[] around = new int[16];
+        // the source position, carried into and out of the span methods
+        double[] position = new double[2];
+
+        for (int y = region.y; y < region.y + region.height; y ++) {
+            // only the first pixel of each row needs the full matrix math;
+            // the rest of the row just adds a constant step
+            double dx = region.x - ww;
+            double dy = y - hh;
+            double sourceX = stepX * dx + inverse.getShearX() * dy + inverse.getTranslateX() + ww - sourceBounds.x;
+            double sourceY = stepY * dx + inverse.getScaleY() * dy + inverse.getTranslateY() + hh - sourceBounds.y;
+
+            int row = (y - targetBounds.y) * targetBounds.width - targetBounds.x;
+            int x0 = region.x;
+            int x1 = region.x + region.width;
+
+            // the steps along the row that stay inside the window
+            double enter = Math.max(
+                enter(sourceX, stepX, low, sourceWidth - high),
+                enter(sourceY, stepY, low, sourceHeight - high)
+            );
+            double leave = Math.min(
+                leave(sourceX, stepX, low, sourceWidth - high),
+                leave(sourceY, stepY, low, sourceHeight - high)
+            );
+            int from = x0 + (int) Math.min(Math.max(Math.ceil(enter), 0), region.width);
+            int to = x0 + (int) Math.min(Math.max(Math.floor(leave) + 1, from - x0), region.width);
+
+            for (int x = x0; x < from; x ++) {
+                target[row + x] = edgeSample(source, sourceBounds, canvasWidth, canvasHeight, sourceX, sourceY, around);
+                sourceX += stepX;
+                sourceY += stepY;
+            }
+
+            // each interpolation's loop is its own small method, so the JIT
+            // compiles it well on its own instead of as part of this one
+            position[0] = sourceX;
+            position[1] = sourceY;
+            if (interpolation == Interpolation.NEAREST) {
+                nearestSpan(source, sourceWidth, target, row + from, row + to, position, stepX, stepY);
+            } else if (interpolation == Interpolation.BILINEAR) {
+                bilinearSpan(source, sourceWidth, target, row + from, row + to, position, stepX, stepY);
+            } else {
+                bicubicSpan(source, sourceWidth, target, row + from, row + to, position, stepX, stepY);
+            }
+            sourceX = position[0];
+            sourceY = position[1];
+
+            for (int x = to; x < x1; x ++) {
+                target[row + x] = edgeSample(source, sourceBounds, canvasWidth, canvasHeight, sourceX, sourceY, around);
+                sourceX += stepX;
+                sourceY += stepY;
+            }
+        }
+    }
+
+    // Fill target[from..to) by nearest neighbour, starting at [position]
+    // and leaving it where the next pixel would read. Positions inside
+    // the window are never negative, so (int) rounds down like floor().
+    private static void nearestSpan(int[] source, int sourceWidth, int[] target, int from, int to,
+            double[] position, double stepX, double stepY) {
+        double sourceX = position[0];
+        double sourceY = position[1];
+
+        for (int i = from; i < to; i ++) {
+            target[i] = source[(int) (sourceY + 0.5) * sourceWidth + (int) (sourceX + 0.5)];
+            sourceX += stepX;
+            sourceY += stepY;
+        }
+
+        position[0] = sourceX;
+        position[1] = sourceY;
+    }
+
+    // Like nearestSpan, but bilinear
+    private static void bilinearSpan(int[] source, int sourceWidth, int[] target, int from, int to,
+            double[] position, double stepX, double stepY) {
+        double sourceX = position[0];
+        double sourceY = position[1];
+
+        for (int i = from; i < to; i ++) {
+            int left = (int) sourceX;
+            int top = (int) sourceY;
+            target[i] = bilinear(source, sourceWidth, top * sourceWidth + left, sourceX - left, sourceY - top);
+            sourceX += stepX;
+            sourceY += stepY;
+        }
+
+        position[0] = sourceX;
+        position[1] = sourceY;
+    }
+
+    // Like nearestSpan, but bicubic
+    private static void bicubicSpan(int[] source, int sourceWidth, int[] target, int from, int to,
+            double[] position, double stepX, double stepY) {
+        double sourceX = position[0];
+        double sourceY = position[1];
+
+        for (int i = from; i < to; i ++) {
+            int left = (int) sourceX;
+            int top = (int) sourceY;
+            target[i] = bicubic(source, sourceWidth, (top - 1) * sourceWidth + left - 1, sourceX - left, sourceY - top);
+            sourceX += stepX;
+            sourceY += stepY;
+        }
+
+        position[0] = sourceX;
+        position[1] = sourceY;
+    }
+
+    // The first step t at which start + t * step is in [low, high]
+    private static double enter(double start, double step, double low, double high) {
+        if (step == 0) {
+            return start >= low && start <= high ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        return step > 0 ? (low - start) / step : (high - start) / step;
+    }
+
+    // The last step t at which start + t * step is in [low, high]
+    private static double leave(double start, double step, double low, double high) {
+        if (step == 0) {
+            return start >= low && start <= high ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+        }
+        return step > 0 ? (high - start) / step : (low - start) / step;
+    }
+
+    // Interpolate at a position near the edge of the window, gathering
+    // the pixels around it into [around] through the EdgePolicy first
+    private int edgeSample(int[] source, Rectangle bounds, int canvasWidth, int canvasHeight,
+            double sourceX, double sourceY, int[] around) {
+        // off past the window, everything CONSTANT reads is black
+        if (
+            edges == EdgePolicy.CONSTANT
+            && (sourceX < -3 || sourceY < -3 || sourceX > bounds.width + 2 || sourceY > bounds.height + 2)
+        ) {
+            return 0;
+        }
+
+        if (interpolation == Interpolation.NEAREST) {
+            return edgePixel(source, bounds, canvasWidth, canvasHeight,
+                    (int) Math.floor(sourceX + 0.5), (int) Math.floor(sourceY + 0.5));
+        }
+
+        int left = (int) Math.floor(sourceX);
+        int top = (int) Math.floor(sourceY);
+
+        if (interpolation == Interpolation.BILINEAR) {
+            for (int j = 0; j < 2; j ++) {
+                for (int i = 0; i < 2; i ++) {
+                    around[j * 4 + i] = edgePixel(source, bounds, canvasWidth, canvasHeight, left + i, top + j);
+                }
+            }
+            return bilinear(around, 4, 0, sourceX - left, sourceY - top);
+        }
+
+        for (int j = 0; j < 4; j ++) {
+            for (int i = 0; i < 4; i ++) {
+                around[j * 4 + i] = edgePixel(source, bounds, canvasWidth, canvasHeight, left - 1 + i, top - 1 + j);
+            }
+        }
+        return bicubic(around, 4, 0, sourceX - left, sourceY - top);
+    }
+
+    // The pixel at (x, y) of the window, following the EdgePolicy off the
+    // canvas, or black if that lands outside the window
+    private int edgePixel(int[] source, Rectangle bounds, int canvasWidth, int canvasHeight, int x, int y) {
+        int canvasX = edges.index(x + bounds.x, canvasWidth);
+        int canvasY = edges.index(y + bounds.y, canvasHeight);
+        if (canvasX < 0 || canvasY < 0) {
+            return 0;
+        }
+
+        return Filter.sample(source, bounds.width, bounds.height, canvasX - bounds.x, canvasY - bounds.y);
+    }
+
+    // Blend the 2 x 2 pixels starting at [topLeft] of [pixels], rows
+    // [stride] apart, at [fx], [fy] of the way across
+    private static int bilinear(int[] pixels, int stride, int topLeft, double fx, double fy) {
+        int a = pixels[topLeft];
+        int b = pixels[topLeft + 1];
+        int c = pixels[topLeft + stride];
+        int d = pixels[topLeft + stride + 1];
+
+        return Filter.rgb(
+            blend(Filter.red(a), Filter.red(b), Filter.red(c), Filter.red(d), fx, fy),
+            blend(Filter.green(a), Filter.green(b), Filter.green(c), Filter.green(d), fx, fy),
+            blend(Filter.blue(a), Filter.blue(b), Filter.blue(c), Filter.blue(d), fx, fy)
+        );
+    }
+
+    // One channel of bilinear: top left, top right, bottom left, bottom right
+    private static int blend(int a, int b, int c, int d, double fx, double fy) {
+        double upper = a * (1 - fx) + b * fx;
+        double lower = c * (1 - fx) + d * fx;
+        return Math.min((int) (upper * (1 - fy) + lower * fy + 0.5), 255);
+    }
+
+    // Blend the 4 x 4 pixels starting at [corner] of [pixels], rows
+    // [stride] apart, with [fx], [fy] measured from the second pixel
+    private static int bicubic(int[] pixels, int stride, int corner, double fx, double fy) {
+        double red = 0;
+        double green = 0;
+        double blue = 0;
+        for (int j = 0; j < 4; j ++) {
+            double wy = cubicWeight(fy, j);
+            int rowStart = corner + j * stride;
+            for (int i = 0; i < 4; i ++) {
+                int c = pixels[rowStart + i];
+                double weight = cubicWeight(fx, i) * wy;
+                red += ((c >> 16) & 0xFF) * weight;
+                green += ((c >> 8) & 0xFF) * weight;
+                blue += (c & 0xFF) * weight;
+            }
+        }
+
+        return Filter.rgb(clamp(red), clamp(green), clamp(blue));
+    }
+
+    // Catmull-Rom weight of the [i]th of the 4 pixels around a position
+    // [t] of the way from the second pixel to the third
+    private static double cubicWeight(double t, int i) {
+        double t2 = t * t;
+        double t3 = t2 * t;
+
+        if (i == 0) {
+            return 0.5 * (-t3 + 2 * t2 - t);
+        } else if (i == 1) {
+            return 0.5 * (3 * t3 - 5 * t2 + 2);
+        } else if (i == 2) {
+            return 0.5 * (-3 * t3 + 4 * t2 + t);
+        } else {
+            return 0.5 * (t3 - t2);
+        }
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(value + 0.5, 255));
+    }
+
+}
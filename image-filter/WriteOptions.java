@@ -0,0 +1,103 @@
+/**
+ * How ImageManager should save an image: which file format, and for
+ * JPEGs, how hard to compress.
+ *
+ * Set options by chaining, like Pipeline:
+ *
+ *   image.write("out.jpg", WriteOptions.jpg().quality(0.9f).progressive(true));
+ *
+ * Quality goes from 0 (smallest file, worst looking) to 1 (biggest file,
+ * best looking), and only means something for JPEGs. Progressive JPEGs
+ * (and interlaced PNGs) load as a blurry whole picture that sharpens,
+ * rather than top to bottom.
+ */
+class WriteOptions {
+
+    enum Format {
+        JPG("jpg"),
+        PNG("png"),
+        BMP("bmp"),
+        RAW("raw");
+
+        // the name ImageIO knows the format by
+        final String formatName;
+
+        Format(String formatName) {
+            this.formatName = formatName;
+        }
+    }
+
+    // less than 0 means "whatever the encoder does by default"
+    public static final float DEFAULT_QUALITY = -1;
+
+    private Format format;
+    private float quality = DEFAULT_QUALITY;
+    private boolean progressive;
+
+    public WriteOptions(Format format) {
+        this.format = format;
+    }
+
+    public static WriteOptions jpg() {
+        return new WriteOptions(Format.JPG);
+    }
+
+    public static WriteOptions png() {
+        return new WriteOptions(Format.PNG);
+    }
+
+    public static WriteOptions bmp() {
+        return new WriteOptions(Format.BMP);
+    }
+
+    public static WriteOptions raw() {
+        return new WriteOptions(Format.RAW);
+    }
+
+    /**
+     * Default options for the format [path] ends in, falling back to JPEG
+     * when it's not one we know
+     */
+    public static WriteOptions forPath(String path) {
+        String name = path.toLowerCase();
+
+        if (name.endsWith(".png")) {
+            return png();
+        } else if (name.endsWith(".bmp")) {
+            return bmp();
+        } else if (name.endsWith(".raw")) {
+            return raw();
+        }
+        return jpg();
+    }
+
+    /**
+     * JPEG quality, from 0 to 1
+     */
+    public WriteOptions quality(float quality) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("Quality must be between 0 and 1, got " + quality);
+        }
+
+        this.quality = quality;
+        return this;
+    }
+
+    public WriteOptions progressive(boolean progressive) {
+        this.progressive = progressive;
+        return this;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+}
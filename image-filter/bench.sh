@@ -0,0 +1,8 @@
+#!/bin/sh
+
+javac *.java
+# see run.sh
+if javac --add-modules jdk.incubator.vector -cp . -d . vector/*.java 2> /dev/null; then
+    VECTOR="--add-modules jdk.incubator.vector"
+fi
+java $VECTOR -Xmx3g -Dapple.awt.UIElement=true Benchmark "$@"
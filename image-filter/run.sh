@@ -1,5 +1,9 @@
 #!/bin/sh
 
 javac *.java
-java -Dapple.awt.UIElement=true Main
-
+# The SIMD kernels need the incubating Vector API. If this JDK doesn't
+# have it, skip them and the filters use their plain loops instead.
+if javac --add-modules jdk.incubator.vector -cp . -d . vector/*.java 2> /dev/null; then
+    VECTOR="--add-modules jdk.incubator.vector"
+fi
+java $VECTOR -Dapple.awt.UIElement=true Main
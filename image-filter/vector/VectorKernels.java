@@ -0,0 +1,140 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The Simd.Kernels, written with the Vector API.
+ *
+ * Each kernel loads a vector's worth of packed 0xRRGGBB pixels, splits
+ * them into one vector per channel with shifts and masks, does the
+ * filter's math on whole vectors at once, and packs them back together.
+ * Whatever is left over at the end that doesn't fill a vector is done
+ * one pixel at a time with Filter's own helpers.
+ *
+ * Needs --add-modules jdk.incubator.vector to compile and to run.
+ */
+class VectorKernels implements Simd.Kernels {
+
+    // Every kernel uses one of these two, both the full width of the
+    // CPU's widest vector register: as many ints, for packed pixels, and
+    // as many bytes, for the planes of a PlanarImage. Mixing vector
+    // sizes within one element type (say, 256-bit and 512-bit ints)
+    // stops the JIT specializing the shared Vector API code, but a
+    // second element type at the same size doesn't. The packed kernels
+    // run just as fast after the byte kernels have been used.
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+    public void greyscale(int[] pixels, int from, int to) {
+        int i = from;
+
+        for (; i < from + INTS.loopBound(to - from); i += INTS.length()) {
+            IntVector c = IntVector.fromArray(INTS, pixels, i);
+            IntVector sum = c.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                .add(c.lanewise(VectorOperators.LSHR, 8).and(0xFF))
+                .add(c.and(0xFF));
+
+            // sum / 3 without a divide: for sums up to 765,
+            // (sum * 43691) >> 17 is exactly sum / 3 rounded down
+            IntVector average = sum.mul(43691).lanewise(VectorOperators.LSHR, 17);
+
+            pack(average, average, average).intoArray(pixels, i);
+        }
+
+        for (; i < to; i ++) {
+            pixels[i] = Filter.greyscalePixel(pixels[i]);
+        }
+    }
+
+    public void contrasty(int[] pixels, int from, int to) {
+        IntVector full = IntVector.broadcast(INTS, 255);
+        int i = from;
+
+        for (; i < from + INTS.loopBound(to - from); i += INTS.length()) {
+            IntVector c = IntVector.fromArray(INTS, pixels, i);
+
+            pack(
+                onOrOff(c.lanewise(VectorOperators.LSHR, 16).and(0xFF), full),
+                onOrOff(c.lanewise(VectorOperators.LSHR, 8).and(0xFF), full),
+                onOrOff(c.and(0xFF), full)
+            ).intoArray(pixels, i);
+        }
+
+        for (; i < to; i ++) {
+            pixels[i] = Filter.CONTRASTY_LUT.filter(pixels[i]);
+        }
+    }
+
+    // 0 where the channel is under 127, 255 everywhere else
+    private static IntVector onOrOff(IntVector channel, IntVector full) {
+        VectorMask<Integer> dark = channel.lt(127);
+        return full.blend(0, dark);
+    }
+
+    public void addClamped(int[] pixels, int from, int to, int red, int green, int blue) {
+        int i = from;
+
+        for (; i < from + INTS.loopBound(to - from); i += INTS.length()) {
+            IntVector c = IntVector.fromArray(INTS, pixels, i);
+
+            pack(
+                c.lanewise(VectorOperators.LSHR, 16).and(0xFF).add(red).min(255),
+                c.lanewise(VectorOperators.LSHR, 8).and(0xFF).add(green).min(255),
+                c.and(0xFF).add(blue).min(255)
+            ).intoArray(pixels, i);
+        }
+
+        for (; i < to; i ++) {
+            int c = pixels[i];
+            pixels[i] = Filter.rgb(
+                Math.min(Filter.red(c) + red, 255),
+                Math.min(Filter.green(c) + green, 255),
+                Math.min(Filter.blue(c) + blue, 255)
+            );
+        }
+    }
+
+    // A plane's bytes hold values from 0 to 255, so they're compared as
+    // unsigned numbers: a signed byte would call 200 negative.
+
+    public void contrasty(byte[] plane, int from, int to) {
+        int i = from;
+
+        for (; i < from + BYTES.loopBound(to - from); i += BYTES.length()) {
+            ByteVector c = ByteVector.fromArray(BYTES, plane, i);
+            VectorMask<Byte> dark = c.compare(VectorOperators.UNSIGNED_LT, (byte) 127);
+            ByteVector.broadcast(BYTES, (byte) 255).blend((byte) 0, dark).intoArray(plane, i);
+        }
+
+        for (; i < to; i ++) {
+            plane[i] = (byte) Filter.CONTRASTY_LUT.lookup(0, plane[i] & 0xFF);
+        }
+    }
+
+    public void addClamped(byte[] plane, int from, int to, int amount) {
+        int i = from;
+
+        for (; i < from + BYTES.loopBound(to - from); i += BYTES.length()) {
+            ByteVector c = ByteVector.fromArray(BYTES, plane, i);
+            ByteVector sum = c.add((byte) amount);
+
+            // if adding wrapped round past 255, the sum ends up smaller
+            // than where it started
+            VectorMask<Byte> over = sum.compare(VectorOperators.UNSIGNED_LT, c);
+            sum.blend((byte) 255, over).intoArray(plane, i);
+        }
+
+        for (; i < to; i ++) {
+            plane[i] = (byte) Math.min((plane[i] & 0xFF) + amount, 255);
+        }
+    }
+
+    private static IntVector pack(IntVector red, IntVector green, IntVector blue) {
+        return red.lanewise(VectorOperators.LSHL, 16)
+            .or(green.lanewise(VectorOperators.LSHL, 8))
+            .or(blue);
+    }
+
+}